@@ -0,0 +1,134 @@
+package cn.cidea.core.dal.redis;
+
+import cn.cidea.core.utils.function.IPK;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import lombok.Data;
+import org.openjdk.jmh.annotations.*;
+import org.redisson.client.codec.Codec;
+import org.redisson.codec.JsonJacksonCodec;
+import org.redisson.codec.MarshallingCodec;
+import org.redisson.codec.SerializationCodec;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 缓存编解码基准测试，对比{@link Codecs}和redisson常用编解码的编码、解码耗时
+ * 体积由encode的辅助计数bytes给出：bytes为每秒编码的字节数，除以encode的吞吐即为单条体积
+ * 样例实体为常见的业务表字段组合
+ *
+ * @author: CIdea
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class CodecBenchmark {
+
+    @Param({"marshalling", "jackson", "jdk", "kryo", "kryoLz4"})
+    public String codecName;
+
+    private Codec codec;
+    private Sample sample;
+    private byte[] bytes;
+
+    @Setup
+    public void setup() throws IOException {
+        codec = codec(codecName);
+        sample = Sample.of(1);
+        bytes = encode(new Size());
+    }
+
+    @Benchmark
+    public byte[] encode(Size size) throws IOException {
+        ByteBuf buf = codec.getValueEncoder().encode(sample);
+        try {
+            byte[] encoded = ByteBufUtil.getBytes(buf);
+            size.bytes += encoded.length;
+            return encoded;
+        } finally {
+            buf.release();
+        }
+    }
+
+    @Benchmark
+    public Object decode() throws IOException {
+        return codec.getValueDecoder().decode(Unpooled.wrappedBuffer(bytes), new org.redisson.client.handler.State());
+    }
+
+    private static Codec codec(String name) {
+        switch (name) {
+            case "marshalling":
+                return new MarshallingCodec();
+            case "jackson":
+                return new JsonJacksonCodec();
+            case "jdk":
+                return new SerializationCodec();
+            case "kryo":
+                return Codecs.kryo();
+            case "kryoLz4":
+                return Codecs.kryoLz4();
+            default:
+                throw new IllegalArgumentException("unknown codec " + name);
+        }
+    }
+
+    /**
+     * 编码的字节数，按吞吐统计
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Size {
+        public long bytes;
+    }
+
+    @Data
+    public static class Sample implements IPK {
+
+        private Long id;
+        private String code;
+        private String name;
+        private String spec;
+        private String unit;
+        private BigDecimal price;
+        private Integer status;
+        private Boolean deleted;
+        private Date createTime;
+        private Date updateTime;
+        private List<String> tags;
+
+        @Override
+        public Serializable pkVal() {
+            return id;
+        }
+
+        static Sample of(long id) {
+            Sample sample = new Sample();
+            sample.setId(id);
+            sample.setCode("YP" + (100000 + id));
+            sample.setName("阿莫西林胶囊");
+            sample.setSpec("0.25g*24粒/盒");
+            sample.setUnit("盒");
+            sample.setPrice(new BigDecimal("12.50"));
+            sample.setStatus(1);
+            sample.setDeleted(false);
+            sample.setCreateTime(new Date(1672531200000L));
+            sample.setUpdateTime(new Date(1675209600000L));
+            List<String> tags = new ArrayList<>();
+            tags.add("处方药");
+            tags.add("抗生素");
+            sample.setTags(tags);
+            return sample;
+        }
+    }
+
+}
@@ -0,0 +1,113 @@
+package cn.cidea.core.utils;
+
+import com.google.common.cache.CacheBuilder;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link PackingConvert}基准测试，样例取自{@link PackingConvert#main(String[])}
+ *
+ * @author: CIdea
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PackingConvertBenchmark {
+
+    /**
+     * 规格串，单位
+     */
+    static final String[][] SPECS = {
+            {"散", "散"}, {"1管", "管"}, {"3g", "袋"}, {"10mg*24粒", "瓶"}, {"10mg*6片*3板/瓶", "瓶"},
+            {"80万iu x4粒", "盒"}, {"100g（2.5%）", "支"}, {"1贴(1mg/片，1.25cm2)", "盒"}, {"6袋*（a剂+b剂）", "盒"},
+            {"4000axaiu*2支", "盒"}, {"0.5亿活菌*20粒/盒", "盒"}, {"2500ml／桶", "桶"}, {"15mg x36片", "桶"},
+            {"3g\\管", "管"}, {"60粒\\瓶", "瓶"}, {"200ml:134g", "支"}, {"5ml：5mg（0.1%）", "支"}, {"60ml：3.0g（5%）", "支"},
+            {"(3ml)300u*1支", "支"}, {"(4.5g)500ml*1袋", "袋"}, {"56喷/瓶(8.1ml/瓶)", "瓶"}, {"10ml(含碘(i)480mg/ml)/支", "支"},
+            {"5ml(5ml:50mg(1%))", "支"}, {"2ml*10支(2ml:100mg)", "盒"}, {"2ml*20支（2ml:5mg)", "盒"}, {"3ml*5支(3ml:0.3g)", "盒"},
+            {"0.005%(30ml：1.50mg)", "支"}, {"10g（10g:0.1g）", "支"}, {"7片（150mg:12.5mg）", "盒"}, {"50ug/250ug/泡*60泡", "支"},
+            {"15g(10g:0.2g)", "支"}, {"2.5g：2.4275g*40袋", "盒"}, {"(80μg:4.5μg)*60吸", "盒"}, {"5g:0.015g", "支"},
+            {"130mg/g（16g*5袋）", "盒"}, {"0.3g*100片/瓶", "瓶"}, {"228.5mgx28袋", "袋"},
+    };
+
+    /**
+     * 数量，当前单位，目标单位，规格串，单位
+     */
+    static final String[][] CONVERTS = {
+            {"1", "kg", "g", "1kg", "盒"}, {"1", "g", "kg", "1000g", "盒"}, {"1", "克", "千克", "1000g", "盒"},
+            {"1", "毫克", "盒", "2ml：0.5g*10支/盒", "盒"}, {"2", "片", "瓶", "100片/瓶", "瓶"}, {"0.3", "片", "瓶", "0.3g*100片", "瓶"},
+            {"1", "g", "瓶", "0.3g*100片/瓶", "瓶"}, {"20", "mg", "瓶", "5mg*100片", "瓶"}, {"10", "ml", "支", "20ml/支", "支"},
+            {"100", "ml", "瓶", "200ml:134g", "瓶"}, {"228.5", "mg", "袋", "228.5mgx28袋", "袋"}, {"81", "ml", "瓶", "56喷/瓶(8.1ml/瓶)", "瓶"},
+            {"14", "片", "瓶", "7片（150mg:12.5mg）", "瓶"}, {"7.5", "ml", "支", "5ml(5ml:50mg(1%))", "支"},
+            {"15", "ml", "瓶", "10ml(含碘(I)480mg/ml)/支", "瓶"}, {"20", "ml", "瓶", "2ml*10支(2ml:100mg)", "瓶"},
+            {"80", "g", "盒", "130mg/g（16g*5袋）", "盒"}, {"5", "袋", "盒", "130mg/g（16g*5袋）", "盒"},
+    };
+
+    @State(Scope.Thread)
+    public static class Cold {
+
+        int i;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            // 不缓存，每次都重新解析
+            PackingConvert.setCache(CacheBuilder.newBuilder().maximumSize(0).build());
+        }
+
+    }
+
+    @State(Scope.Thread)
+    public static class Warm {
+
+        int i;
+        List<BigDecimal> cnt = new ArrayList<>();
+        List<PackingConvert.ConvertParam> batch = new ArrayList<>();
+
+        @Setup(Level.Trial)
+        public void setup() {
+            PackingConvert.setCache(CacheBuilder.newBuilder().maximumSize(10000).recordStats().build());
+            for (String[] c : CONVERTS) {
+                cnt.add(new BigDecimal(c[0]));
+                PackingConvert.convert(new BigDecimal(c[0]), c[1], c[2], c[3], c[4]);
+            }
+            // 模拟结算，大量行对应少量规格
+            for (int n = 0; n < 1000; n++) {
+                String[] c = CONVERTS[n % CONVERTS.length];
+                batch.add(new PackingConvert.ConvertParam(new BigDecimal(c[0]), c[1], c[2], c[3], c[4]));
+            }
+        }
+
+    }
+
+    @Benchmark
+    public PackingConvert.Node buildTreeCold(Cold state) {
+        String[] spec = SPECS[state.i++ % SPECS.length];
+        try {
+            return PackingConvert.buildTree(spec[0], spec[1]);
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    @Benchmark
+    public BigDecimal convertWarm(Warm state) {
+        int i = state.i++ % CONVERTS.length;
+        String[] c = CONVERTS[i];
+        return PackingConvert.convert(state.cnt.get(i), c[1], c[2], c[3], c[4]);
+    }
+
+    /**
+     * 一次1000行
+     */
+    @Benchmark
+    public void convertBatchWarm(Warm state, Blackhole bh) {
+        bh.consume(PackingConvert.convert(state.batch));
+    }
+
+}
@@ -0,0 +1,52 @@
+package cn.cidea.core.utils;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link StringSeqUtils}基准测试
+ *
+ * @author: CIdea
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class StringSeqUtilsBenchmark {
+
+    private static final String NUMBER_END = RegexStr.NUMBER + "$";
+    private static final StringSeqUtils.Suffixes UNITS = new StringSeqUtils.Suffixes("mg", "g", "kg", "ml", "l", "片", "粒", "瓶", "盒", "支", "袋");
+
+    @Param({"10ml(含碘(i)480mg/ml)/支", "5ml(5ml:50mg(1%))", "130mg/g（16g*5袋）"})
+    public String bracketSpec;
+
+    @Param({"0.3g*100片/瓶*228.5"})
+    public String numberSpec;
+
+    @Benchmark
+    public String bracket() {
+        return StringSeqUtils.bracket(new StringBuilder(bracketSpec));
+    }
+
+    @Benchmark
+    public String pattern() {
+        return StringSeqUtils.pattern(new StringBuilder(numberSpec), NUMBER_END, true);
+    }
+
+    @Benchmark
+    public String tailNumber() {
+        return StringSeqUtils.tailNumber(new StringBuilder(numberSpec), true);
+    }
+
+    @Benchmark
+    public String tailUnit() {
+        StringBuilder seq = new StringBuilder(numberSpec);
+        StringSeqUtils.tailNumber(seq, true);
+        StringSeqUtils.deleteTails(seq, false, '*');
+        return StringSeqUtils.tail(seq, UNITS, true);
+    }
+
+}
@@ -0,0 +1,60 @@
+package cn.cidea.core.utils.math;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link Fraction}连续乘除基准测试，系数取自规格换算中常见的数值
+ *
+ * @author: CIdea
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class FractionBenchmark {
+
+    private Fraction[] weights;
+    private BigDecimal cnt;
+
+    @Setup
+    public void setup() {
+        String[] values = {"0.3", "100", "28", "228.5", "8.1", "56", "12.5", "150", "2.4275", "40"};
+        weights = new Fraction[values.length];
+        for (int i = 0; i < values.length; i++) {
+            weights[i] = new Fraction(new BigDecimal(values[i]));
+        }
+        cnt = new BigDecimal("7.5");
+    }
+
+    /**
+     * 交替乘除10个系数
+     */
+    @Benchmark
+    public Fraction chain() {
+        Fraction f = Fraction.ONE;
+        for (int i = 0; i < weights.length; i++) {
+            f = (i & 1) == 0 ? f.multiply(weights[i]) : f.divide(weights[i]);
+        }
+        return f;
+    }
+
+    /**
+     * 同转换的最后一步，数量乘以系数后取值
+     */
+    @Benchmark
+    public BigDecimal chainVal() {
+        return new Fraction(cnt).multiply(chain()).val(8, RoundingMode.CEILING);
+    }
+
+    @Benchmark
+    public boolean equalsChain() {
+        return chain().equals(chain().reverse().reverse());
+    }
+
+}
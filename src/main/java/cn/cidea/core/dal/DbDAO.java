@@ -3,7 +3,10 @@ package cn.cidea.core.dal;
 import java.io.Serializable;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Date;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import java.util.function.Function;
 import java.util.function.Supplier;
 
@@ -25,6 +28,27 @@ public abstract class DbDAO<E> {
         return collection.iterator().next();
     }
 
+    /**
+     * 异步读取，多个DAO的读取可以并行
+     * 默认在调用线程中同步读取，子类按需实现异步；读取失败时返回异常完成的结果，不直接抛出
+     */
+    public CompletionStage<Collection<E>> selectBatchIdsAsync(Set<Serializable> ids) {
+        CompletableFuture<Collection<E>> future = new CompletableFuture<>();
+        try {
+            future.complete(selectBatchIds(ids));
+        } catch (Throwable e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+    public CompletionStage<E> selectByIdAsync(Serializable id) {
+        if(id == null){
+            return CompletableFuture.completedFuture(null);
+        }
+        return selectBatchIdsAsync(Collections.singleton(id))
+                .thenApply(collection -> collection.isEmpty() ? null : collection.iterator().next());
+    }
+
     public abstract void insert(Collection<E> coll);
     public final void insert(E entity) {
         if (entity == null) {
@@ -55,4 +79,29 @@ public abstract class DbDAO<E> {
         return null;
     }
 
+    /**
+     * 从数据库分页加载，按id升序，用于全量刷新，实现后代替{@link #loadAll()}，不再一次加载整表
+     * 参数为上一页最后一条的id（首页为null），返回之后的一页，返回空表示结束
+     * @return
+     */
+    protected Function<Serializable, Collection<E>> loadPage(){
+        return null;
+    }
+
+    /**
+     * 从数据库加载水位线（含）之后变动的数据，用于增量刷新
+     * @return
+     */
+    protected Function<Date, Collection<E>> loadSince(){
+        return null;
+    }
+
+    /**
+     * 从数据库加载全部id，用于增量刷新时找出已删除的数据，按全量刷新间隔执行
+     * @return
+     */
+    protected Supplier<Set<Serializable>> loadAllIds(){
+        return null;
+    }
+
 }
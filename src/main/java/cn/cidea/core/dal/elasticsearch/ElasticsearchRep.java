@@ -1,41 +1,292 @@
 package cn.cidea.core.dal.elasticsearch;
 
 import cn.cidea.core.dal.DbDAO;
+import cn.cidea.core.dal.redis.RedisLeader;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RedissonClient;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationContext;
+import org.springframework.data.elasticsearch.BulkFailureException;
+import org.springframework.data.elasticsearch.core.ElasticsearchOperations;
+import org.springframework.data.elasticsearch.core.convert.ElasticsearchConverter;
 import org.springframework.data.elasticsearch.repository.ElasticsearchRepository;
 import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.util.ClassUtils;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Supplier;
 
 /**
  * Elasticsearch
  * @author: CIdea
  */
+@Slf4j
 public abstract class ElasticsearchRep<E, R extends ElasticsearchRepository<E, ?>> extends DbDAO<E> {
 
+    /**
+     * 定时刷新周期，毫秒
+     */
+    private static final long REFRESH_RATE = 10 * 60 * 1000;
+    /**
+     * bulk被拒绝时的重试次数、首次退避时间（毫秒，之后每次翻倍）
+     */
+    private static final int BULK_RETRY_TIMES = 3;
+    private static final long BULK_BACKOFF_MILLIS = 200;
+    private static final String REJECTED = "es_rejected_execution_exception";
+    /**
+     * 默认估算的单条文档字节数
+     */
+    private static final long DOC_BYTES = 1024;
+    /**
+     * redisson是可选依赖，有redisson时集群选主刷新，否则每个节点各自刷新
+     */
+    private static final boolean REDISSON_PRESENT = ClassUtils.isPresent("org.redisson.api.RedissonClient", ElasticsearchRep.class.getClassLoader());
+
     @Autowired
     private R rep;
+    @Autowired
+    private ApplicationContext applicationContext;
+
+    /**
+     * 并发写入批次的线程池，首次有多个批次时创建，之后复用
+     */
+    private volatile ExecutorService bulkExecutor;
 
-    @Scheduled(initialDelay = 0, fixedRate = 10 * 60 * 1000)
+    @Scheduled(initialDelay = 0, fixedRate = REFRESH_RATE)
     public void refresh() {
         Supplier<Collection<E>> loadAll = loadAll();
         if (loadAll == null) {
             return;
         }
+        if (REDISSON_PRESENT && Leader.runIfLeader(applicationContext, ClassUtils.getUserClass(this).getName(), () -> refresh(loadAll))) {
+            return;
+        }
+        refresh(loadAll);
+    }
+
+    private void refresh(Supplier<Collection<E>> loadAll) {
         clear();
         insert(loadAll.get());
     }
 
+    /**
+     * 分批bulk写入，每批不超过{@link #bulkActions()}条、{@link #bulkBytes()}字节，最多{@link #bulkConcurrency()}批同时写入
+     * 同时写入的批次已满时等待，不再继续拆分，内存中只有正在写入的批次；只有一批时在当前线程写入
+     * 被es拒绝（429、es_rejected_execution_exception）的文档退避后只重试这部分，其它失败直接抛出
+     */
     public void insert(Collection<E> coll) {
         if (coll == null || coll.isEmpty()) {
             return;
         }
-        rep.saveAll(coll);
+        Semaphore permits = new Semaphore(Math.max(1, bulkConcurrency()));
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        long start = System.nanoTime();
+        try {
+            List<E> batch = new ArrayList<>();
+            long bytes = 0;
+            for (E entity : coll) {
+                long size = sizeOf(entity);
+                if (!batch.isEmpty() && (batch.size() >= bulkActions() || bytes + size > bulkBytes())) {
+                    submit(permits, futures, batch, bytes);
+                    batch = new ArrayList<>();
+                    bytes = 0;
+                }
+                batch.add(entity);
+                bytes += size;
+            }
+            if (futures.isEmpty()) {
+                bulk(0, batch, bytes);
+            } else {
+                submit(permits, futures, batch, bytes);
+                CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+            }
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+        if (log.isDebugEnabled()) {
+            long millis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            log.debug("bulk index, class = {}, size = {}, batches = {}, cost = {}ms, throughput = {}/s",
+                    this.getClass().getSimpleName(), coll.size(), Math.max(1, futures.size()), millis, coll.size() * 1000L / millis);
+        }
+    }
+
+    /**
+     * 每批最大条数
+     */
+    protected int bulkActions() {
+        return 1000;
+    }
+
+    /**
+     * 每批最大字节数，按{@link #sizeOf(Object)}估算，单条超过时单独一批
+     */
+    protected long bulkBytes() {
+        return 5 * 1024 * 1024;
+    }
+
+    /**
+     * 同时写入的批次数
+     */
+    protected int bulkConcurrency() {
+        return 2;
+    }
+
+    /**
+     * 估算文档字节数，用于按{@link #bulkBytes()}拆分批次，不能为了估算而序列化
+     * 默认每条按1KB估算，文档较大或大小差异明显时重写，如按主要文本字段的长度估算
+     */
+    protected long sizeOf(E entity) {
+        return DOC_BYTES;
+    }
+
+    private ExecutorService bulkExecutor() {
+        ExecutorService executor = this.bulkExecutor;
+        if (executor == null) {
+            synchronized (this) {
+                executor = this.bulkExecutor;
+                if (executor == null) {
+                    String name = "es-bulk-" + this.getClass().getSimpleName() + "-";
+                    AtomicInteger no = new AtomicInteger();
+                    executor = Executors.newFixedThreadPool(Math.max(1, bulkConcurrency()), r -> {
+                        Thread thread = new Thread(r, name + no.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                    this.bulkExecutor = executor;
+                }
+            }
+        }
+        return executor;
+    }
+
+    private void submit(Semaphore permits, List<CompletableFuture<Void>> futures, List<E> batch, long bytes) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        // 已有批次失败，不再提交
+        futures.stream().filter(CompletableFuture::isCompletedExceptionally).findFirst().ifPresent(CompletableFuture::join);
+        permits.acquireUninterruptibly();
+        int no = futures.size();
+        futures.add(CompletableFuture.runAsync(() -> {
+            try {
+                bulk(no, batch, bytes);
+            } finally {
+                permits.release();
+            }
+        }, bulkExecutor()));
+    }
+
+    private void bulk(int no, List<E> batch, long bytes) {
+        long start = System.nanoTime();
+        List<E> pending = batch;
+        for (int retry = 0; ; retry++) {
+            try {
+                rep.saveAll(pending);
+                break;
+            } catch (BulkFailureException e) {
+                List<E> rejected = rejected(pending, e.getFailedDocuments());
+                if (rejected == null || retry >= BULK_RETRY_TIMES) {
+                    throw e;
+                }
+                pending = rejected;
+            } catch (RuntimeException e) {
+                if (!isRejected(e) || retry >= BULK_RETRY_TIMES) {
+                    throw e;
+                }
+            }
+            long backoff = BULK_BACKOFF_MILLIS << retry;
+            log.warn("bulk rejected, class = {}, batch = {}, retry = {}, size = {}, backoff = {}ms",
+                    this.getClass().getSimpleName(), no, retry + 1, pending.size(), backoff);
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("bulk index interrupted", e);
+            }
+        }
+        if (log.isDebugEnabled()) {
+            long millis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            log.debug("bulk index batch, class = {}, batch = {}, size = {}, bytes = {}, cost = {}ms, throughput = {}/s",
+                    this.getClass().getSimpleName(), no, batch.size(), bytes, millis, batch.size() * 1000L / millis);
+        }
+    }
+
+    /**
+     * 失败的文档中被拒绝的部分
+     *
+     * @param failed K-文档id，V-失败原因
+     * @return null-有其它原因的失败或无法按id找到文档，不能重试
+     */
+    private List<E> rejected(List<E> batch, Map<String, String> failed) {
+        if (failed == null || failed.isEmpty() || !failed.values().stream().allMatch(ElasticsearchRep::isRejected)) {
+            return null;
+        }
+        List<E> rejected = new ArrayList<>();
+        for (E entity : batch) {
+            String id = id(entity);
+            if (id == null) {
+                return null;
+            }
+            if (failed.containsKey(id)) {
+                rejected.add(entity);
+            }
+        }
+        return rejected.size() == failed.size() ? rejected : null;
+    }
+
+    private String id(E entity) {
+        ElasticsearchOperations operations = applicationContext.getBeanProvider(ElasticsearchOperations.class).getIfAvailable();
+        if (operations == null) {
+            return null;
+        }
+        ElasticsearchConverter converter = operations.getElasticsearchConverter();
+        Object id = converter.getMappingContext().getRequiredPersistentEntity(entity.getClass()).getIdentifierAccessor(entity).getIdentifier();
+        return id == null ? null : converter.convertId(id);
+    }
+
+    private static boolean isRejected(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (isRejected(t.getMessage())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isRejected(String reason) {
+        return reason != null && (reason.contains(REJECTED) || reason.contains("Too Many Requests") || reason.contains("TOO_MANY_REQUESTS"));
     }
 
     public void clear() {
         rep.deleteAll();
     }
 
+    /**
+     * 隔离redisson的类，没有redisson时不会加载
+     */
+    private static class Leader {
+
+        /**
+         * 索引是各节点共享的，每个周期只由一个节点刷新
+         *
+         * @return false-没有{@link RedissonClient}，需要自行执行
+         */
+        private static boolean runIfLeader(ApplicationContext applicationContext, String name, Runnable task) {
+            RedissonClient redissonClient = applicationContext.getBeanProvider(RedissonClient.class).getIfAvailable();
+            if (redissonClient == null) {
+                return false;
+            }
+            new RedisLeader(redissonClient, "es:" + name + ":refresh").runIfLeader(REFRESH_RATE, token -> task.run());
+            return true;
+        }
+    }
+
 }
@@ -0,0 +1,70 @@
+package cn.cidea.core.dal.redis;
+
+/**
+ * 缓存指标，{@link RedisCacheDAO}、{@link RedisCacheMapper}、{@link RedisCacheLPK}在读取、加载、刷新时回调，参数cacheKey为各DAO的{@link RedisCacheDAO#cacheKey()}
+ * 默认{@link #NOOP}不记录；容器中有{@link io.micrometer.core.instrument.MeterRegistry}时自动使用{@link MicrometerCacheMetrics}，也可自行声明实现替换
+ * 时间单位均为纳秒
+ *
+ * @author: CIdea
+ */
+public interface CacheMetrics {
+
+    CacheMetrics NOOP = new CacheMetrics() {
+    };
+
+    /**
+     * 命中
+     *
+     * @param level local-本地缓存，redis-redis缓存，null-空值缓存
+     */
+    default void hit(String cacheKey, String level, int count) {
+    }
+
+    /**
+     * 缓存未命中
+     */
+    default void miss(String cacheKey, int count) {
+    }
+
+    /**
+     * 布隆过滤器判断不存在，直接返回
+     */
+    default void bloomReject(String cacheKey, int count) {
+    }
+
+    /**
+     * 布隆过滤器判断存在、数据源中却不存在，布隆误判或已删除
+     * 与{@link #bloomReject}、{@link #hit}一起可估算误判率
+     */
+    default void absent(String cacheKey, int count) {
+    }
+
+    /**
+     * 从数据源加载
+     *
+     * @param count 加载的id数量
+     */
+    default void load(String cacheKey, int count, long nanos) {
+    }
+
+    /**
+     * 定时刷新
+     *
+     * @param full 是否全量刷新
+     */
+    default void refresh(String cacheKey, boolean full, long nanos) {
+    }
+
+    /**
+     * 加载租约（锁）的等待时间，含抢占和等待其它节点加载
+     */
+    default void lockWait(String cacheKey, long nanos) {
+    }
+
+    /**
+     * 加载租约（锁）的持有时间
+     */
+    default void lockHold(String cacheKey, long nanos) {
+    }
+
+}
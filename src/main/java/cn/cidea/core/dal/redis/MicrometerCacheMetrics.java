@@ -0,0 +1,114 @@
+package cn.cidea.core.dal.redis;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.boot.autoconfigure.AutoConfigureAfter;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.stereotype.Component;
+import org.springframework.util.Assert;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 基于micrometer的缓存指标，按cacheKey打标签cache
+ * <pre>
+ * cidea.cache.hit          计数，标签level：local、redis、null
+ * cidea.cache.miss         计数
+ * cidea.cache.bloom.reject 计数
+ * cidea.cache.absent       计数
+ * cidea.cache.load         耗时；cidea.cache.load.ids 计数
+ * cidea.cache.refresh      耗时，标签type：full、delta
+ * cidea.cache.lock.wait    耗时
+ * cidea.cache.lock.hold    耗时
+ * </pre>
+ * 需要自行引入依赖micrometer-core（spring-boot-starter-actuator已包含）
+ *
+ * @author: CIdea
+ */
+@Component
+@ConditionalOnClass(MeterRegistry.class)
+@ConditionalOnBean(MeterRegistry.class)
+@ConditionalOnMissingBean(CacheMetrics.class)
+@AutoConfigureAfter(name = "org.springframework.boot.actuate.autoconfigure.metrics.CompositeMeterRegistryAutoConfiguration")
+public class MicrometerCacheMetrics implements CacheMetrics {
+
+    private static final String PREFIX = "cidea.cache.";
+    private static final String TAG_CACHE = "cache";
+    private static final String SPLIT = ":";
+
+    private final MeterRegistry registry;
+    /**
+     * 已注册的计数、耗时，K-名称:标签值:cacheKey，每次记录不再构建、注册
+     */
+    private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+    private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+
+    public MicrometerCacheMetrics(MeterRegistry registry) {
+        Assert.notNull(registry, "registry is not be null");
+        this.registry = registry;
+    }
+
+    @Override
+    public void hit(String cacheKey, String level, int count) {
+        increment("hit", "level", level, cacheKey, count);
+    }
+
+    @Override
+    public void miss(String cacheKey, int count) {
+        increment("miss", null, null, cacheKey, count);
+    }
+
+    @Override
+    public void bloomReject(String cacheKey, int count) {
+        increment("bloom.reject", null, null, cacheKey, count);
+    }
+
+    @Override
+    public void absent(String cacheKey, int count) {
+        increment("absent", null, null, cacheKey, count);
+    }
+
+    @Override
+    public void load(String cacheKey, int count, long nanos) {
+        record("load", null, null, cacheKey, nanos);
+        increment("load.ids", null, null, cacheKey, count);
+    }
+
+    @Override
+    public void refresh(String cacheKey, boolean full, long nanos) {
+        record("refresh", "type", full ? "full" : "delta", cacheKey, nanos);
+    }
+
+    @Override
+    public void lockWait(String cacheKey, long nanos) {
+        record("lock.wait", null, null, cacheKey, nanos);
+    }
+
+    @Override
+    public void lockHold(String cacheKey, long nanos) {
+        record("lock.hold", null, null, cacheKey, nanos);
+    }
+
+    private void increment(String name, String tag, String value, String cacheKey, int count) {
+        if (count <= 0) {
+            return;
+        }
+        counters.computeIfAbsent(name + SPLIT + value + SPLIT + cacheKey, k -> {
+            Counter.Builder builder = Counter.builder(PREFIX + name).tag(TAG_CACHE, cacheKey);
+            return (tag == null ? builder : builder.tag(tag, value)).register(registry);
+        }).increment(count);
+    }
+
+    private void record(String name, String tag, String value, String cacheKey, long nanos) {
+        timers.computeIfAbsent(name + SPLIT + value + SPLIT + cacheKey, k -> {
+            Timer.Builder builder = Timer.builder(PREFIX + name).tag(TAG_CACHE, cacheKey);
+            return (tag == null ? builder : builder.tag(tag, value)).register(registry);
+        }).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+}
@@ -0,0 +1,579 @@
+package cn.cidea.core.dal.redis;
+
+import com.google.common.hash.Hashing;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.collections4.CollectionUtils;
+import org.redisson.api.*;
+import org.redisson.client.codec.StringCodec;
+import org.springframework.util.Assert;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.stream.Collectors;
+
+/**
+ * 基于{@link RBitSet}的可扩容布隆过滤器
+ * 与{@link RBloomFilter}相比，批量判断、批量添加通过{@link RBatch}管道一次往返完成，而不是每个元素一次
+ * 位下标由元素toString后的murmur3_128哈希计算，同一数据的id类型需要一致
+ * 配置（代、各层位数、哈希次数、容量）保存在redis，读取后在本地缓存，每次批量操作时在同一批次中校验
+ * 扩容：元素数量超过容量时追加一层，新层容量翻倍、误判率减半，元素在任一层中即存在，总误判率不超过初始误判率的2倍，不需要重建
+ * 布隆过滤器不能删除元素，需要全量重建时{@link #beginRebuild(long, double)}开始新的一代，{@link #addAllPending(Collection)}写入，{@link #commitRebuild()}切换配置，读取不会看到空的过滤器
+ * 重建期间{@link #addAll(Collection)}同时写入当前一代和待切换的一代，切换前后添加的元素都不会丢失
+ *
+ * @author: CIdea
+ */
+@Slf4j
+public class RedisBloomFilter<T> {
+
+    /**
+     * redis字符串最大512MB
+     */
+    private static final long MAX_SIZE = Integer.MAX_VALUE * 2L;
+    private static final String SPLIT = ":";
+    /**
+     * 扩容时新层的容量倍数、误判率倍数
+     */
+    private static final int GROWTH = 2;
+    private static final double TIGHTENING = 0.5;
+    /**
+     * 重建后旧一代的保留时间，正在读取旧一代的请求不受影响
+     */
+    private static final long EXPIRED_TTL_SECONDS = 60;
+    /**
+     * 批量添加时每批的元素数量
+     */
+    private static final int BATCH_SIZE = 10000;
+    /**
+     * 待切换一代的保留时间，重建中断时自动清除，避免之后的添加一直双写
+     */
+    private static final long PENDING_TTL_SECONDS = 3600;
+
+    private final RedissonClient redissonClient;
+    private final String name;
+    private final String configKey;
+    private final String pendingKey;
+
+    /**
+     * 本地缓存的配置，null-未读取
+     */
+    private volatile Config config;
+
+    public RedisBloomFilter(RedissonClient redissonClient, String name) {
+        Assert.notNull(redissonClient, "redissonClient is not be null");
+        Assert.hasText(name, "name is not be null");
+        this.redissonClient = redissonClient;
+        this.name = name;
+        this.configKey = name + ":config";
+        this.pendingKey = name + ":pending";
+    }
+
+    /**
+     * 初始化配置，已存在则沿用redis中的配置
+     *
+     * @param expectedInsertions 预期元素数量，超过后自动扩容
+     * @param falseProbability   误判率
+     * @return true-本次初始化
+     */
+    public boolean tryInit(long expectedInsertions, double falseProbability) {
+        Config config = new Config(0, Collections.singletonList(Layer.of(expectedInsertions, falseProbability)));
+        boolean init = configBucket().setIfAbsent(config.toString());
+        this.config = init ? config : loadConfig();
+        return init;
+    }
+
+    /**
+     * 是否已初始化，本地没有配置时从redis读取
+     */
+    public boolean isExists() {
+        return config() != null;
+    }
+
+    public boolean contains(T object) {
+        return !containsAll(Collections.singleton(object)).isEmpty();
+    }
+
+    /**
+     * 批量判断，一次往返
+     * 同一批次中读取配置，若其它节点已扩容或切换到新的一代，按新配置重新判断一次
+     *
+     * @return 可能存在的元素；不在其中的一定不存在
+     */
+    public Set<T> containsAll(Collection<T> objects) {
+        Config config = config();
+        if (config == null || CollectionUtils.isEmpty(objects)) {
+            return new HashSet<>(0);
+        }
+        List<T> list = new ArrayList<>(objects);
+        List<long[]> hashes = list.stream().map(RedisBloomFilter::hash).collect(Collectors.toList());
+        List<?> responses;
+        int retry = 0;
+        while (true) {
+            responses = containsBatch(config, hashes).execute().getResponses();
+            Config current = Config.parse((String) responses.get(0));
+            if (current == null) {
+                // 已删除
+                this.config = null;
+                return new HashSet<>(0);
+            }
+            if (config.equals(current) || retry++ > 0) {
+                break;
+            }
+            this.config = current;
+            config = current;
+        }
+        return exists(list, config, responses);
+    }
+
+    /**
+     * 异步批量判断，同{@link #containsAll(Collection)}
+     */
+    public CompletionStage<Set<T>> containsAllAsync(Collection<T> objects) {
+        Config config = config();
+        if (config == null || CollectionUtils.isEmpty(objects)) {
+            return CompletableFuture.completedFuture(new HashSet<>(0));
+        }
+        List<T> list = new ArrayList<>(objects);
+        List<long[]> hashes = list.stream().map(RedisBloomFilter::hash).collect(Collectors.toList());
+        return containsAllAsync(list, hashes, config, 0);
+    }
+
+    private CompletionStage<Set<T>> containsAllAsync(List<T> list, List<long[]> hashes, Config config, int retry) {
+        return containsBatch(config, hashes).executeAsync().thenCompose(result -> {
+            List<?> responses = result.getResponses();
+            Config current = Config.parse((String) responses.get(0));
+            if (current == null) {
+                this.config = null;
+                return CompletableFuture.completedFuture(new HashSet<>(0));
+            }
+            if (config.equals(current) || retry > 0) {
+                return CompletableFuture.completedFuture(exists(list, config, responses));
+            }
+            this.config = current;
+            return containsAllAsync(list, hashes, current, retry + 1);
+        });
+    }
+
+    /**
+     * 读取配置+各层的位，配置在第一个
+     */
+    private RBatch containsBatch(Config config, List<long[]> hashes) {
+        RBatch batch = redissonClient.createBatch();
+        batch.getBucket(configKey, StringCodec.INSTANCE).getAsync();
+        for (int l = 0; l < config.getLayers().size(); l++) {
+            Layer layer = config.getLayers().get(l);
+            RBitSetAsync bits = batch.getBitSet(bitsKey(config, l));
+            for (long[] hash : hashes) {
+                for (long index : layer.indexes(hash)) {
+                    bits.getAsync(index);
+                }
+            }
+        }
+        return batch;
+    }
+
+    /**
+     * 任一层中全部位都为1即存在
+     */
+    private Set<T> exists(List<T> list, Config config, List<?> responses) {
+        boolean[] exists = new boolean[list.size()];
+        int i = 1;
+        for (Layer layer : config.getLayers()) {
+            for (int o = 0; o < list.size(); o++) {
+                boolean inLayer = true;
+                for (int j = 0; j < layer.getHashIterations(); j++) {
+                    inLayer &= Boolean.TRUE.equals(responses.get(i++));
+                }
+                exists[o] |= inLayer;
+            }
+        }
+        Set<T> result = new HashSet<>();
+        for (int o = 0; o < list.size(); o++) {
+            if (exists[o]) {
+                result.add(list.get(o));
+            }
+        }
+        return result;
+    }
+
+    public void add(T object) {
+        addAll(Collections.singleton(object));
+    }
+
+    /**
+     * 批量添加到最新一层，一次往返
+     * 同一批次中读取配置，按设置前的位统计新增元素后累加数量；若其它节点已扩容或切换到新的一代，在新的一层上重新添加一次；数量超过容量时扩容
+     * 同一批次中读取待切换的一代，重建中时再写入待切换的一代
+     */
+    public void addAll(Collection<T> objects) {
+        Config config = config();
+        Assert.state(config != null, "bloom filter " + name + " is not initialized");
+        if (CollectionUtils.isEmpty(objects)) {
+            return;
+        }
+        String pending = null;
+        for (int retry = 0; retry < 2; retry++) {
+            RBatch batch = redissonClient.createBatch();
+            batch.getBucket(configKey, StringCodec.INSTANCE).getAsync();
+            batch.getBucket(pendingKey, StringCodec.INSTANCE).getAsync();
+            add(batch.getBitSet(bitsKey(config, config.getLayers().size() - 1)), objects, config.last());
+            List<?> responses = batch.execute().getResponses();
+            Config current = Config.parse((String) responses.get(0));
+            pending = (String) responses.get(1);
+            if (current == null) {
+                break;
+            }
+            if (config.equals(current)) {
+                if (count(config, added(responses, 2, objects.size(), config.last())) > config.capacity()) {
+                    this.config = grow(configBucket(), config);
+                }
+                break;
+            }
+            this.config = current;
+            config = current;
+        }
+        Config pendingConfig = Config.parse(pending);
+        if (pendingConfig != null && pendingConfig.getGeneration() != config.getGeneration()) {
+            addPending(pendingConfig, objects, false);
+        }
+    }
+
+    /**
+     * 在新的一代上写入全部元素，完成后切换配置，旧一代延迟过期
+     *
+     * @param objects            全部元素
+     * @param expectedInsertions 预期元素数量，小于元素数量时按元素数量
+     * @param falseProbability   误判率
+     */
+    public void rebuild(Collection<T> objects, long expectedInsertions, double falseProbability) {
+        beginRebuild(Math.max(expectedInsertions, objects.size()), falseProbability);
+        addAllPending(objects);
+        commitRebuild();
+    }
+
+    /**
+     * 开始重建，创建待切换的一代，之后{@link #addAll(Collection)}同时写入待切换的一代
+     * 同一时间只能有一个重建，由调用方保证，如只在刷新的主节点上重建
+     *
+     * @param expectedInsertions 预期元素数量，超过后自动扩容
+     * @param falseProbability   误判率
+     */
+    public void beginRebuild(long expectedInsertions, double falseProbability) {
+        Config old = loadConfig();
+        Config pending = new Config(old == null ? 0 : old.getGeneration() + 1,
+                Collections.singletonList(Layer.of(expectedInsertions, falseProbability)));
+        // 清理可能残留的同代数据，如上次重建中断
+        Config residual = Config.parse(pendingBucket().get());
+        List<String> keys = new ArrayList<>();
+        keys.add(countKey(pending));
+        keys.add(bitsKey(pending, 0));
+        if (residual != null) {
+            keys.add(countKey(residual));
+            for (int l = 0; l < residual.getLayers().size(); l++) {
+                keys.add(bitsKey(residual, l));
+            }
+        }
+        redissonClient.getKeys().delete(keys.toArray(new String[0]));
+        RBatch batch = redissonClient.createBatch(BatchOptions.defaults().skipResult());
+        RBucketAsync<String> bucket = batch.getBucket(pendingKey, StringCodec.INSTANCE);
+        bucket.setAsync(pending.toString());
+        bucket.expireAsync(Duration.ofSeconds(PENDING_TTL_SECONDS));
+        batch.execute();
+    }
+
+    /**
+     * 添加到待切换的一代，用于重建时写入全部元素
+     */
+    public void addAllPending(Collection<T> objects) {
+        Config pending = Config.parse(pendingBucket().get());
+        Assert.state(pending != null, "bloom filter " + name + " is not rebuilding");
+        List<T> list = new ArrayList<>(objects);
+        for (int i = 0; i < list.size() && pending != null; i += BATCH_SIZE) {
+            pending = addPending(pending, list.subList(i, Math.min(i + BATCH_SIZE, list.size())), true);
+        }
+    }
+
+    /**
+     * 切换到待切换的一代，旧一代延迟过期
+     * 切换期间待切换的一代扩容，则按扩容后的配置再切换一次
+     */
+    public void commitRebuild() {
+        RBucket<String> pendingBucket = pendingBucket();
+        String pending = pendingBucket.get();
+        Assert.state(pending != null, "bloom filter " + name + " is not rebuilding");
+        Config old = Config.parse(configBucket().getAndSet(pending));
+        while (!pendingBucket.compareAndSet(pending, null)) {
+            String grown = pendingBucket.get();
+            if (grown == null) {
+                break;
+            }
+            pending = grown;
+            configBucket().set(pending);
+        }
+        Config config = Config.parse(pending);
+        this.config = config;
+        if (old != null && old.getGeneration() != config.getGeneration()) {
+            expire(old);
+        }
+        log.info("rebuild bloom filter, name = {}, generation = {}, capacity = {}", name, config.getGeneration(), config.capacity());
+    }
+
+    /**
+     * 放弃重建，删除待切换的一代
+     */
+    public void abortRebuild() {
+        Config pending = Config.parse(pendingBucket().getAndDelete());
+        if (pending == null) {
+            return;
+        }
+        List<String> keys = new ArrayList<>();
+        keys.add(countKey(pending));
+        for (int l = 0; l < pending.getLayers().size(); l++) {
+            keys.add(bitsKey(pending, l));
+        }
+        redissonClient.getKeys().delete(keys.toArray(new String[0]));
+    }
+
+    public void delete() {
+        Config config = config();
+        List<String> keys = new ArrayList<>();
+        keys.add(configKey);
+        keys.add(pendingKey);
+        if (config != null) {
+            keys.add(countKey(config));
+            for (int l = 0; l < config.getLayers().size(); l++) {
+                keys.add(bitsKey(config, l));
+            }
+        }
+        redissonClient.getKeys().delete(keys.toArray(new String[0]));
+        this.config = null;
+    }
+
+    /**
+     * 添加到待切换一代的最新一层，同{@link #addAll(Collection)}，配置保存在待切换的key中
+     *
+     * @param touch 是否延长待切换一代的保留时间，只有重建的节点延长，重建中断后能自动清除
+     * @return 最新的待切换配置，null-已切换
+     */
+    private Config addPending(Config pending, Collection<T> objects, boolean touch) {
+        for (int retry = 0; retry < 2; retry++) {
+            RBatch batch = redissonClient.createBatch();
+            RBucketAsync<String> bucket = batch.getBucket(pendingKey, StringCodec.INSTANCE);
+            bucket.getAsync();
+            add(batch.getBitSet(bitsKey(pending, pending.getLayers().size() - 1)), objects, pending.last());
+            if (touch) {
+                bucket.expireAsync(Duration.ofSeconds(PENDING_TTL_SECONDS));
+            }
+            List<?> responses = batch.execute().getResponses();
+            Config current = Config.parse((String) responses.get(0));
+            if (current == null) {
+                // 已切换，写入的位在当前一代上
+                return null;
+            }
+            if (pending.equals(current)) {
+                long count = count(pending, added(responses, 1, objects.size(), pending.last()));
+                return count > pending.capacity() ? grow(pendingBucket(), pending) : pending;
+            }
+            pending = current;
+        }
+        return pending;
+    }
+
+    /**
+     * 追加一层，并发扩容时只有一个节点成功
+     *
+     * @return 最新配置
+     */
+    private Config grow(RBucket<String> bucket, Config config) {
+        Layer last = config.last();
+        Layer next;
+        try {
+            next = Layer.of(last.getCapacity() * GROWTH, last.getFalseProbability() * TIGHTENING);
+        } catch (IllegalArgumentException e) {
+            log.warn("bloom filter can't grow, name = {}, capacity = {}", name, config.capacity(), e);
+            return config;
+        }
+        List<Layer> layers = new ArrayList<>(config.getLayers());
+        layers.add(next);
+        Config grown = new Config(config.getGeneration(), layers);
+        if (bucket.compareAndSet(config.toString(), grown.toString())) {
+            log.info("grow bloom filter, name = {}, layers = {}, capacity = {}", name, layers.size(), grown.capacity());
+            return grown;
+        }
+        return Config.parse(bucket.get());
+    }
+
+    private void expire(Config config) {
+        RBatch batch = redissonClient.createBatch(BatchOptions.defaults().skipResult());
+        batch.getAtomicLong(countKey(config)).expireAsync(Duration.ofSeconds(EXPIRED_TTL_SECONDS));
+        for (int l = 0; l < config.getLayers().size(); l++) {
+            batch.getBitSet(bitsKey(config, l)).expireAsync(Duration.ofSeconds(EXPIRED_TTL_SECONDS));
+        }
+        batch.execute();
+    }
+
+    private void add(RBitSetAsync bits, Collection<T> objects, Layer layer) {
+        for (T object : objects) {
+            for (long index : layer.indexes(hash(object))) {
+                bits.setAsync(index);
+            }
+        }
+    }
+
+    /**
+     * 新增的元素数量：设置前至少有一位为0的元素，已存在的元素重复添加不计数，只更新不会导致扩容
+     *
+     * @param offset 第一个位的设置结果在批次结果中的下标，结果为设置前的值
+     */
+    private static int added(List<?> responses, int offset, int size, Layer layer) {
+        int added = 0;
+        int i = offset;
+        for (int o = 0; o < size; o++) {
+            boolean exists = true;
+            for (int j = 0; j < layer.getHashIterations(); j++) {
+                exists &= Boolean.TRUE.equals(responses.get(i++));
+            }
+            if (!exists) {
+                added++;
+            }
+        }
+        return added;
+    }
+
+    /**
+     * 累加数量，没有新增元素时不访问redis
+     *
+     * @return 累加后的数量，没有新增时为0
+     */
+    private long count(Config config, int added) {
+        return added == 0 ? 0 : redissonClient.getAtomicLong(countKey(config)).addAndGet(added);
+    }
+
+    private String bitsKey(Config config, int layer) {
+        return name + ":bits:" + config.getGeneration() + SPLIT + layer;
+    }
+
+    private String countKey(Config config) {
+        return name + ":count:" + config.getGeneration();
+    }
+
+    private Config config() {
+        Config config = this.config;
+        if (config == null) {
+            config = loadConfig();
+            this.config = config;
+        }
+        return config;
+    }
+
+    private Config loadConfig() {
+        return Config.parse(configBucket().get());
+    }
+
+    private RBucket<String> configBucket() {
+        return redissonClient.getBucket(configKey, StringCodec.INSTANCE);
+    }
+
+    private RBucket<String> pendingBucket() {
+        return redissonClient.getBucket(pendingKey, StringCodec.INSTANCE);
+    }
+
+    /**
+     * 128位哈希拆成两个64位
+     */
+    private static long[] hash(Object object) {
+        byte[] bytes = Hashing.murmur3_128().hashString(String.valueOf(object), StandardCharsets.UTF_8).asBytes();
+        ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        return new long[]{buffer.getLong(), buffer.getLong()};
+    }
+
+    /**
+     * 配置，redis中保存为`代:层;层;...`
+     */
+    @Data
+    private static class Config {
+
+        /**
+         * 代，每次重建加1，对应不同的位图
+         */
+        private final long generation;
+        private final List<Layer> layers;
+
+        private Layer last() {
+            return layers.get(layers.size() - 1);
+        }
+
+        /**
+         * 总容量
+         */
+        private long capacity() {
+            return layers.stream().mapToLong(Layer::getCapacity).sum();
+        }
+
+        private static Config parse(String value) {
+            if (value == null) {
+                return null;
+            }
+            String[] split = value.split(SPLIT);
+            List<Layer> layers = Arrays.stream(split[1].split(";"))
+                    .map(Layer::parse)
+                    .collect(Collectors.toList());
+            return new Config(Long.parseLong(split[0]), layers);
+        }
+
+        @Override
+        public String toString() {
+            return generation + SPLIT + layers.stream().map(Layer::toString).collect(Collectors.joining(";"));
+        }
+    }
+
+    /**
+     * 层，redis中保存为`位数,哈希次数,容量,误判率`
+     */
+    @Data
+    private static class Layer {
+
+        private final long size;
+        private final int hashIterations;
+        private final long capacity;
+        private final double falseProbability;
+
+        private static Layer of(long capacity, double falseProbability) {
+            Assert.isTrue(capacity > 0, "expectedInsertions must be positive");
+            Assert.isTrue(falseProbability > 0 && falseProbability < 1, "falseProbability must be in (0, 1)");
+            long size = Math.max(1, (long) (-capacity * Math.log(falseProbability) / (Math.log(2) * Math.log(2))));
+            Assert.isTrue(size <= MAX_SIZE, "bloom filter size " + size + " exceeds " + MAX_SIZE);
+            int hashIterations = Math.max(1, (int) Math.round((double) size / capacity * Math.log(2)));
+            return new Layer(size, hashIterations, capacity, falseProbability);
+        }
+
+        private static Layer parse(String value) {
+            String[] split = value.split(",");
+            return new Layer(Long.parseLong(split[0]), Integer.parseInt(split[1]), Long.parseLong(split[2]), Double.parseDouble(split[3]));
+        }
+
+        /**
+         * Kirsch-Mitzenmacher：两个哈希值组合出k个下标
+         */
+        private long[] indexes(long[] hash) {
+            long[] indexes = new long[hashIterations];
+            long combined = hash[0];
+            for (int i = 0; i < hashIterations; i++) {
+                indexes[i] = (combined & Long.MAX_VALUE) % size;
+                combined += hash[1];
+            }
+            return indexes;
+        }
+
+        @Override
+        public String toString() {
+            return size + "," + hashIterations + "," + capacity + "," + falseProbability;
+        }
+    }
+
+}
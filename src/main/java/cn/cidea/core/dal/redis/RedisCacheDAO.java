@@ -1,88 +1,456 @@
 package cn.cidea.core.dal.redis;
 
 import cn.cidea.core.dal.DbDAO;
-import cn.cidea.core.utils.SynchronizedUtils;
 import cn.cidea.core.utils.function.IPK;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.collections4.CollectionUtils;
-import org.redisson.api.RBloomFilter;
-import org.redisson.api.RLock;
-import org.redisson.api.RMap;
-import org.redisson.api.RedissonClient;
+import org.apache.commons.collections4.ListUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.redisson.api.*;
+import org.redisson.client.codec.Codec;
+import org.redisson.client.codec.StringCodec;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.util.Assert;
 
 import java.io.Serializable;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
 import java.util.function.Function;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 /**
  * Redis缓存DAO
- * 可实现{@link #loadById(Serializable)}、{@link #loadByIds(Set)}、{@link #loadAll()}从数据源（如数据库）加载数据
+ * 可实现{@link #loadById(Serializable)}、{@link #loadByIds(Set)}、{@link #loadAll()}从数据源（如数据库）加载数据，数据量大时实现{@link #loadPage()}分页加载
+ * 实现{@link #loadSince()}、{@link #loadAllIds()}后定时刷新改为按水位线增量刷新
+ * 可实现{@link #codec()}自定义序列化方案
+ * 命中、加载、刷新等指标见{@link CacheMetrics}
  * // TODO CIdea: 缓存时间配置，过期时间配置
- * // TODO CIdea: 可自定义序列化方案
  * @author CIdea
  */
 @Slf4j
 public abstract class RedisCacheDAO<E extends IPK> extends DbDAO<E> {
 
+    private static final String SPLIT = ":";
+    /**
+     * 定时刷新周期，毫秒
+     */
+    private static final long REFRESH_RATE = 10 * 60 * 1000;
+    /**
+     * 水位线往前的余量，毫秒
+     */
+    private static final long WATERMARK_OVERLAP = 60 * 1000;
+    /**
+     * 布隆过滤器默认预期数量、误判率
+     */
+    private static final long EXPECTED_INSERTIONS = 10000;
+    private static final double FALSE_PROBABILITY = 0.001;
+    /**
+     * 扫描缓存key时每批数量
+     */
+    private static final int SCAN_COUNT = 1000;
+    /**
+     * 写入缓存时每批数量，避免单条命令过大阻塞redis
+     */
+    private static final int WRITE_BATCH_SIZE = 1000;
+    /**
+     * 跨节点加载租约，毫秒；等待其它节点加载的间隔、次数，超过后自行加载
+     */
+    private static final long LOAD_LEASE_MILLIS = 3000;
+    private static final long LOAD_WAIT_MILLIS = 50;
+    private static final int LOAD_WAIT_TIMES = 10;
+    /**
+     * 当前节点，加载租约的值
+     */
+    private static final String NODE = UUID.randomUUID().toString();
+    /**
+     * 释放租约：仍是当前节点持有时才删除，租约过期后被其它节点抢占的不删除
+     */
+    private static final String RELEASE_SCRIPT = "if redis.call('get', KEYS[1]) == ARGV[1] then return redis.call('del', KEYS[1]) end return 0";
+
     @Autowired
     protected RedissonClient redissonClient;
+    @Autowired(required = false)
+    protected CacheMetrics metrics = CacheMetrics.NOOP;
+
+    /**
+     * 本地缓存的Map，开启{@link #localCacheOptions()}时创建一次后复用，本地缓存随实例保存
+     */
+    private volatile RLocalCachedMap<Serializable, E> localCache;
+    private volatile RedisBloomFilter<Serializable> bloomFilter;
+    /**
+     * 是否记录变动的id，能删除差异（全量刷新或实现了{@link #loadAllIds()}）时才记录，null-未判断
+     */
+    private volatile Boolean trackChanged;
+    /**
+     * 进程内正在加载的id
+     */
+    private final Map<Serializable, CompletableFuture<E>> loading = new ConcurrentHashMap<>();
 
     protected abstract String cacheKey();
 
+    /**
+     * 缓存数据的编解码，默认使用{@link RedissonClient}的编解码
+     * 可选{@link Codecs}中的紧凑二进制方案，修改后已有数据无法解码，需要先清空或更换{@link #cacheKey()}
+     *
+     * @return null-默认
+     */
+    protected Codec codec() {
+        return null;
+    }
+
+    /**
+     * 本地缓存（L1）配置，默认不开启，所有读取都访问redis
+     * 开启后在redis前增加进程内缓存，热点数据不再访问redis，其它节点写入、删除时通过redis发布订阅失效本地缓存
+     * 例：
+     * <pre>
+     * LocalCachedMapOptions.&lt;Serializable, E&gt;defaults()
+     *         .cacheSize(10000)
+     *         .evictionPolicy(LocalCachedMapOptions.EvictionPolicy.LRU)
+     *         .timeToLive(10, TimeUnit.MINUTES)
+     *         .syncStrategy(LocalCachedMapOptions.SyncStrategy.INVALIDATE)
+     *         .reconnectionStrategy(LocalCachedMapOptions.ReconnectionStrategy.CLEAR);
+     * </pre>
+     *
+     * @return null-不开启
+     */
+    protected LocalCachedMapOptions<Serializable, E> localCacheOptions() {
+        return null;
+    }
+
     // 不能PostConstruct，因为有时候组件没加载完全
     // @PostConstruct
     // 低版本spring会没有timeUnit
     // @Scheduled(initialDelay = 0, fixedDelay = 10 * 60 * 1000, timeUnit = TimeUnit.MINUTES)
-    @Scheduled(initialDelay = 0, fixedRate = 10 * 60 * 1000)
+    @Scheduled(initialDelay = 0, fixedRate = REFRESH_RATE)
     public void refresh() {
         Supplier<Collection<E>> loadAll = loadAll();
-        if(loadAll == null){
+        Function<Serializable, Collection<E>> loadPage = loadPage();
+        Function<Date, Collection<E>> loadSince = loadSince();
+        if (loadAll == null && loadPage == null && loadSince == null) {
             return;
         }
-        // 全局读写锁。写单个数据时使用读锁，互相不冲突；写全部时使用写锁，完全排它
-        RLock lock = redissonClient.getReadWriteLock(getLockKey()).writeLock();
-        lock.lock();
-        try {
+        // 缓存是各节点共享的，每个周期只由一个节点刷新
+        RedisLeader leader = new RedisLeader(redissonClient, cacheKey() + ":refresh");
+        leader.runIfLeader(REFRESH_RATE, token -> refresh(loadAll, loadPage, loadSince, () -> leader.isCurrent(token)));
+    }
+
+    /**
+     * @param current 是否仍是当选节点，执行超过租约时可能已有其它节点当选，不再写水位线
+     */
+    private void refresh(Supplier<Collection<E>> loadAll, Function<Serializable, Collection<E>> loadPage,
+                         Function<Date, Collection<E>> loadSince, BooleanSupplier current) {
+        // 水位线：上次刷新的开始时间:上次全量刷新的开始时间
+        RBucket<String> watermark = redissonClient.getBucket(getWatermarkKey(), StringCodec.INSTANCE);
+        String[] marks = StringUtils.split(watermark.get(), SPLIT);
+        Date since = marks == null ? null : new Date(Long.parseLong(marks[0]));
+        long lastFull = marks == null ? 0 : Long.parseLong(marks[1]);
+        long start = System.currentTimeMillis();
+        long nanos = System.nanoTime();
+        // 到达全量刷新间隔，全量刷新或删除差异
+        boolean due = since == null || start - lastFull >= fullRefreshInterval();
+        boolean full = (loadAll != null || loadPage != null) && (loadSince == null || due);
+        if (full) {
             log.info("refresh cache, class = {}", this.getClass().getSimpleName());
-            // TODO redisson文档，各个对象的使用说明
-            // redissonClient.getMap();
-            // redissonClient.getMapCache();
-            // redissonClient.getLocalCachedMap();
-            // RBucket<Object> bucket = redissonClient.getBucket();
-            // TODO: 2023/3/6 什么时候适合全刷，分布式的话不太适合每台独自进行
-            clear();
-            insert(loadAll.get());
-        } finally {
-            lock.unlock();
+            fullRefresh(loadAll, loadPage, start);
+            if (loadSince != null) {
+                // 补充全量加载期间变动的数据
+                insert(loadSince.apply(new Date(start - WATERMARK_OVERLAP)));
+            }
+        } else {
+            deltaRefresh(loadSince, since == null ? new Date(0) : since, due, start);
+        }
+        if (due) {
+            lastFull = start;
+        }
+        metrics.refresh(cacheKey(), full, System.nanoTime() - nanos);
+        if (!current.getAsBoolean()) {
+            log.warn("other node is leading, skip watermark, class = {}", this.getClass().getSimpleName());
+            return;
+        }
+        // 往前留出余量，避免时钟偏差、事务未提交导致遗漏，重复加载的数据覆盖写入即可
+        watermark.set((start - WATERMARK_OVERLAP) + SPLIT + lastFull);
+    }
+
+    /**
+     * 布隆过滤器预期数量，初始化时使用；全量刷新时按数据量的2倍重建，取较大值
+     * 超出后自动扩容，不需要精确
+     */
+    protected long expectedInsertions() {
+        return EXPECTED_INSERTIONS;
+    }
+
+    /**
+     * 布隆过滤器误判率，扩容后总误判率不超过2倍
+     */
+    protected double falseProbability() {
+        return FALSE_PROBABILITY;
+    }
+
+    /**
+     * 全量刷新间隔，毫秒，期间只按水位线增量刷新
+     * 增量刷新依赖{@link #loadSince()}，未实现时每次都全量刷新
+     */
+    protected long fullRefreshInterval() {
+        return TimeUnit.DAYS.toMillis(1);
+    }
+
+    /**
+     * 全量刷新，覆盖写入后删除数据源中已不存在的数据，缓存不会出现清空的时刻
+     * 实现了{@link #loadPage()}时逐页加载、写入，内存中只保留一页数据和全部id
+     * 布隆过滤器不能删除元素，在新的一代上重建后切换，期间{@link #insert(Collection)}同时写入新的一代
+     * 刷新开始后变动的id（{@link #insert(Collection)}、{@link #deleteBatchIds(Collection)}）以变动为准，不用加载时的数据覆盖、删除
+     *
+     * @param start 刷新开始时间
+     */
+    private void fullRefresh(Supplier<Collection<E>> loadAll, Function<Serializable, Collection<E>> loadPage, long start) {
+        RMap<Serializable, E> cache = getCache();
+        RedisBloomFilter<Serializable> bloomFilter = getBloomFilter();
+        Collection<E> all = loadPage == null ? loadAll.get() : null;
+        // 按数据源的数据量的2倍重建，留出增长余量，超出后自动扩容
+        long size = all != null ? all.size() : sourceSize(cache);
+        bloomFilter.beginRebuild(Math.max(size * 2L, expectedInsertions()), falseProbability());
+        Set<Serializable> ids = new HashSet<>();
+        int removed;
+        try {
+            // 开始重建前已写入缓存、只写入旧一代的变动
+            bloomFilter.addAllPending(changedSince(start));
+            if (loadPage != null) {
+                Serializable last = null;
+                int pages = 0;
+                Collection<E> page;
+                while (CollectionUtils.isNotEmpty(page = loadPage.apply(last))) {
+                    Serializable pageLast = write(cache, bloomFilter, page, ids, start);
+                    Assert.state(!Objects.equals(last, pageLast), "loadPage of " + this.getClass().getSimpleName() + " returns the same page, last = " + last);
+                    last = pageLast;
+                    pages++;
+                }
+                log.debug("full refresh by page, class = {}, pages = {}", this.getClass().getSimpleName(), pages);
+            } else {
+                write(cache, bloomFilter, all, ids, start);
+            }
+            removed = removeStale(cache, ids, start);
+        } catch (RuntimeException e) {
+            bloomFilter.abortRebuild();
+            throw e;
+        }
+        bloomFilter.commitRebuild();
+        log.info("full refresh, class = {}, size = {}, removed = {}", this.getClass().getSimpleName(), ids.size(), removed);
+    }
+
+    /**
+     * 分页加载时数据源的数据量，实现了{@link #loadAllIds()}时按全部id的数量，否则按当前缓存的数量
+     */
+    private long sourceSize(RMap<Serializable, E> cache) {
+        Supplier<Set<Serializable>> loadAllIds = loadAllIds();
+        return loadAllIds != null ? loadAllIds.get().size() : cache.size();
+    }
+
+    /**
+     * 分批覆盖写入缓存、布隆过滤器待切换的一代
+     *
+     * @param ids   收集加载的id
+     * @param start 刷新开始时间，之后变动的id不覆盖写入
+     * @return 最后一条的id
+     */
+    private Serializable write(RMap<Serializable, E> cache, RedisBloomFilter<Serializable> bloomFilter,
+                               Collection<E> coll, Set<Serializable> ids, long start) {
+        if (CollectionUtils.isEmpty(coll)) {
+            return null;
+        }
+        Map<Serializable, E> data = new LinkedHashMap<>();
+        Serializable last = null;
+        for (E e : coll) {
+            last = e.pkVal();
+            data.put(last, e);
+        }
+        ids.addAll(data.keySet());
+        // 布隆过滤器写入全部id，期间删除的id多出的位只是误判，由空值拦截
+        bloomFilter.addAllPending(data.keySet());
+        data.keySet().removeAll(changedSince(start));
+        cache.putAll(data, WRITE_BATCH_SIZE);
+        // 写入的id不再是空值；已删除的空值保留到过期
+        getTombstones().fastRemove(data.keySet().toArray(new Serializable[0]));
+        return last;
+    }
+
+    /**
+     * 增量刷新，只加载水位线之后变动的数据
+     *
+     * @param due 到达全量刷新间隔，实现了{@link #loadAllIds()}时删除数据源中已不存在的数据
+     */
+    private void deltaRefresh(Function<Date, Collection<E>> loadSince, Date since, boolean due, long start) {
+        Collection<E> coll = loadSince.apply(since);
+        insert(coll);
+        int removed = 0;
+        Supplier<Set<Serializable>> loadAllIds = due ? loadAllIds() : null;
+        if (loadAllIds != null) {
+            removed = removeStale(getCache(), loadAllIds.get(), start);
+        }
+        log.info("delta refresh, class = {}, since = {}, size = {}, removed = {}", this.getClass().getSimpleName(), since, CollectionUtils.size(coll), removed);
+    }
+
+    /**
+     * 删除缓存中有、数据源中没有的数据，分批扫描缓存的key
+     * 刷新开始后变动的id不删除，如加载id后新插入的数据
+     *
+     * @param ids   数据源中的全部id
+     * @param start 刷新开始时间
+     * @return 删除数量
+     */
+    private int removeStale(RMap<Serializable, E> cache, Set<Serializable> ids, long start) {
+        List<Serializable> stale = new ArrayList<>();
+        for (Serializable id : cache.keySet(SCAN_COUNT)) {
+            if (!ids.contains(id)) {
+                stale.add(id);
+            }
+        }
+        if (!stale.isEmpty()) {
+            stale.removeAll(changedSince(start));
+        }
+        if (!stale.isEmpty()) {
+            cache.fastRemove(stale.toArray(new Serializable[0]));
+            putTombstones(stale);
+        }
+        // 更早的变动记录之后的刷新不再需要
+        getChanged().removeRangeByScore(0, true, start - WATERMARK_OVERLAP, false);
+        return stale.size();
+    }
+
+    /**
+     * 刷新开始（往前留出余量）后变动的id
+     */
+    private Collection<Serializable> changedSince(long start) {
+        return getChanged().valueRange(start - WATERMARK_OVERLAP, true, Double.MAX_VALUE, true);
+    }
+
+    /**
+     * 记录变动的id，score为变动时间
+     */
+    private void markChanged(Collection<Serializable> ids) {
+        Boolean trackChanged = this.trackChanged;
+        if (trackChanged == null) {
+            trackChanged = loadAll() != null || loadPage() != null || loadAllIds() != null;
+            this.trackChanged = trackChanged;
+        }
+        if (!trackChanged) {
+            return;
+        }
+        Double now = (double) System.currentTimeMillis();
+        RScoredSortedSet<Serializable> changed = getChanged();
+        for (List<Serializable> part : ListUtils.partition(new ArrayList<>(ids), WRITE_BATCH_SIZE)) {
+            Map<Serializable, Double> scores = new HashMap<>();
+            part.forEach(id -> scores.put(id, now));
+            changed.addAll(scores);
         }
     }
 
     @Override
     public Collection<E> selectBatchIds(Set<Serializable> ids) {
+        String cacheKey = cacheKey();
+        RMap<Serializable, E> cache = getCache();
+        Map<Serializable, E> local = localHits(cacheKey, cache, ids);
+        if (local.size() == ids.size()) {
+            return local.values();
+        }
+        Set<Serializable> remain = remain(ids, local);
         // bloom性质：hash位图。若不存在，则一定不存在；若存在，可能hash重复导致误判
-        RBloomFilter<Serializable> bloomFilter = getBloomFilter();
-        // 过滤出存在的id
-        ids = ids.stream()
-                .filter(bloomFilter::contains)
-                .collect(Collectors.toSet());
-        if (ids.size() == 0) {
+        // 过滤出存在的id，批量判断只需一次往返
+        Set<Serializable> exists = getBloomFilter().containsAll(remain);
+        metrics.bloomReject(cacheKey, remain.size() - exists.size());
+        if (exists.size() == 0) {
             // （全部）不存在立即返回，避免访问数据库，造成穿透
-            return new ArrayList<>(0);
+            return local.values();
         }
+        return loadMissing(cacheKey, exists, cache.getAll(exists), local);
+    }
 
+    /**
+     * 异步读取，本地缓存、布隆过滤器、redis均使用异步接口，不阻塞调用线程
+     * 有缓存未命中的id时，从数据源加载在{@link #asyncExecutor()}中执行
+     */
+    @Override
+    public CompletionStage<Collection<E>> selectBatchIdsAsync(Set<Serializable> ids) {
+        String cacheKey = cacheKey();
         RMap<Serializable, E> cache = getCache();
-        Map<Serializable, E> data = cache.getAll(ids);
+        Map<Serializable, E> local = localHits(cacheKey, cache, ids);
+        if (local.size() == ids.size()) {
+            return CompletableFuture.completedFuture(local.values());
+        }
+        Set<Serializable> remain = remain(ids, local);
+        return getBloomFilter().containsAllAsync(remain).thenCompose(exists -> {
+            metrics.bloomReject(cacheKey, remain.size() - exists.size());
+            if (exists.size() == 0) {
+                return CompletableFuture.completedFuture(local.values());
+            }
+            return cache.getAllAsync(exists).thenCompose(data -> {
+                if (data.size() == exists.size() || loadByIds() == null) {
+                    return CompletableFuture.completedFuture(loadMissing(cacheKey, exists, data, local));
+                }
+                // 加载会访问数据源、等待其它节点，不能在redisson的回调线程中执行
+                return CompletableFuture.supplyAsync(() -> loadMissing(cacheKey, exists, data, local), asyncExecutor());
+            });
+        });
+    }
+
+    /**
+     * 异步读取时从数据源加载的线程池，默认{@link ForkJoinPool#commonPool()}，加载较慢时建议使用独立的线程池
+     */
+    protected Executor asyncExecutor() {
+        return ForkJoinPool.commonPool();
+    }
+
+    /**
+     * 本地缓存命中的数据，不需要访问redis
+     */
+    private Map<Serializable, E> localHits(String cacheKey, RMap<Serializable, E> cache, Set<Serializable> ids) {
+        Map<Serializable, E> local = new HashMap<>();
+        if (cache instanceof RLocalCachedMap) {
+            Map<Serializable, E> cachedMap = ((RLocalCachedMap<Serializable, E>) cache).getCachedMap();
+            for (Serializable id : ids) {
+                E entity = cachedMap.get(id);
+                if (entity != null) {
+                    local.put(id, entity);
+                }
+            }
+            metrics.hit(cacheKey, "local", local.size());
+        }
+        return local;
+    }
+
+    private Set<Serializable> remain(Set<Serializable> ids, Map<Serializable, E> local) {
+        if (local.isEmpty()) {
+            return ids;
+        }
+        return ids.stream()
+                .filter(id -> !local.containsKey(id))
+                .collect(Collectors.toSet());
+    }
+
+    /**
+     * 合并本地缓存、redis读取的数据，缓存中不存在的id从数据源加载
+     *
+     * @param ids  布隆过滤器判断存在的id
+     * @param data redis中读取到的数据
+     */
+    private Collection<E> loadMissing(String cacheKey, Set<Serializable> ids, Map<Serializable, E> data, Map<Serializable, E> local) {
+        metrics.hit(cacheKey, "redis", data.size());
+        metrics.miss(cacheKey, ids.size() - data.size());
+        data.putAll(local);
 
         Function<Set<Serializable>, Collection<E>> loadByIds = loadByIds();
         if(loadByIds == null){
             return data.values();
         }
-        if(data.size() == ids.size()) {
+        if(data.size() - local.size() == ids.size()) {
             // 全部读取成功，直接返回
             return data.values();
         }
@@ -90,33 +458,127 @@ public abstract class RedisCacheDAO<E extends IPK> extends DbDAO<E> {
         Set<Serializable> loadIds = ids.stream()
                 .filter(id -> !data.containsKey(id))
                 .collect(Collectors.toSet());
-        // 全局读锁，与全局写锁互斥，先让刷新写数据
-        RLock lockAll = redissonClient.getReadWriteLock(getLockKey()).readLock();
-        lockAll.lock(1, TimeUnit.SECONDS);
+        // 已删除或数据源中不存在的id，不再访问数据库
+        RMapCache<Serializable, Boolean> tombstones = getTombstones();
+        Set<Serializable> nulls = tombstones.getAll(loadIds).keySet();
+        metrics.hit(cacheKey, "null", nulls.size());
+        loadIds.removeAll(nulls);
+        if (loadIds.isEmpty()) {
+            return data.values();
+        }
+        // 进程内合并相同id的并发加载，已有线程在加载的id等待其结果
+        Map<Serializable, CompletableFuture<E>> owned = new HashMap<>();
+        Map<Serializable, CompletableFuture<E>> waiting = new HashMap<>();
+        for (Serializable id : loadIds) {
+            CompletableFuture<E> future = new CompletableFuture<>();
+            CompletableFuture<E> exists = loading.putIfAbsent(id, future);
+            if (exists == null) {
+                owned.put(id, future);
+            } else {
+                waiting.put(id, exists);
+            }
+        }
+        if (!owned.isEmpty()) {
+            try {
+                Map<Serializable, E> loaded = load(owned.keySet(), loadByIds);
+                data.putAll(loaded);
+                owned.forEach((id, future) -> future.complete(loaded.get(id)));
+            } catch (Throwable e) {
+                owned.values().forEach(future -> future.completeExceptionally(e));
+                throw e;
+            } finally {
+                owned.forEach(loading::remove);
+            }
+        }
+        waiting.forEach((id, future) -> {
+            E entity = future.join();
+            if (entity != null) {
+                data.put(id, entity);
+            }
+        });
+        return data.values();
+    }
+
+    /**
+     * 从数据源加载
+     * 跨节点去重：批量抢占每个id的短租约，一次往返；其它节点正在加载的id等待其写入缓存，超时后自行加载，重复加载只是覆盖写入
+     */
+    private Map<Serializable, E> load(Set<Serializable> ids, Function<Set<Serializable>, Collection<E>> loadByIds) {
+        String cacheKey = cacheKey();
+        long waitStart = System.nanoTime();
+        List<Serializable> list = new ArrayList<>(ids);
+        RBatch batch = redissonClient.createBatch();
+        for (Serializable id : list) {
+            batch.getBucket(getLoadingKey(id), StringCodec.INSTANCE).setIfAbsentAsync(NODE, Duration.ofMillis(LOAD_LEASE_MILLIS));
+        }
+        List<?> responses = batch.execute().getResponses();
+        Set<Serializable> leased = new HashSet<>();
+        Set<Serializable> others = new HashSet<>();
+        for (int i = 0; i < list.size(); i++) {
+            (Boolean.TRUE.equals(responses.get(i)) ? leased : others).add(list.get(i));
+        }
+        long holdStart = System.nanoTime();
+        Map<Serializable, E> data = new HashMap<>();
         try {
-            // 所有id的锁，避免重复加载
-            SynchronizedUtils.lock(getLockKey() + ":", loadIds, () -> {
-                // 获取到锁后重新从缓存读一次，避免加载队列从DB重复加载
-                Map<Serializable, E> loadData = cache.getAll(loadIds);
-                if (!loadData.isEmpty()) {
-                    data.putAll(loadData);
-                    loadIds.removeAll(loadData.keySet());
-                }
-                if (!loadIds.isEmpty()) {
-                    Collection<E> coll = loadByIds.apply(loadIds);
-                    insert(coll);
+            if (!others.isEmpty()) {
+                waitOthers(others, data);
+                metrics.lockWait(cacheKey, System.nanoTime() - waitStart);
+            }
+            Set<Serializable> loadIds = new HashSet<>(leased);
+            loadIds.addAll(others);
+            if (loadIds.isEmpty()) {
+                return data;
+            }
+            // 获取到租约后重新从缓存读一次，避免其它节点刚加载完
+            Map<Serializable, E> cached = getCache().getAll(loadIds);
+            data.putAll(cached);
+            loadIds.removeAll(cached.keySet());
+            if (!loadIds.isEmpty()) {
+                long loadStart = System.nanoTime();
+                Collection<E> coll = loadByIds.apply(loadIds);
+                metrics.load(cacheKey, loadIds.size(), System.nanoTime() - loadStart);
+                insert(coll);
+                if (coll != null) {
+                    coll.forEach(e -> {
+                        data.put(e.pkVal(), e);
+                        loadIds.remove(e.pkVal());
+                    });
                 }
-            });
+                // 数据源中也不存在，布隆误判，记录空值
+                metrics.absent(cacheKey, loadIds.size());
+                putTombstones(loadIds);
+            }
         } finally {
-            if (lockAll.isLocked()) {
-                try {
-                    lockAll.unlock();
-                } catch (Throwable e){
-                    log.error("unlock error", e);
-                }
+            if (!leased.isEmpty()) {
+                RBatch release = redissonClient.createBatch(BatchOptions.defaults().skipResult());
+                RScriptAsync script = release.getScript(StringCodec.INSTANCE);
+                leased.forEach(id -> script.evalAsync(RScript.Mode.READ_WRITE, RELEASE_SCRIPT, RScript.ReturnType.INTEGER,
+                        Collections.singletonList(getLoadingKey(id)), NODE));
+                release.execute();
+                metrics.lockHold(cacheKey, System.nanoTime() - holdStart);
+            }
+        }
+        return data;
+    }
+
+    /**
+     * 等待其它节点加载，已写入缓存或空值的id从others中移除
+     */
+    private void waitOthers(Set<Serializable> others, Map<Serializable, E> data) {
+        for (int i = 0; i < LOAD_WAIT_TIMES && !others.isEmpty(); i++) {
+            try {
+                Thread.sleep(LOAD_WAIT_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            Map<Serializable, E> loaded = getCache().getAll(others);
+            data.putAll(loaded);
+            others.removeAll(loaded.keySet());
+            if (!others.isEmpty()) {
+                others.removeAll(getTombstones().getAll(others).keySet());
             }
         }
-        return data.values();
     }
 
     @Override
@@ -124,44 +586,111 @@ public abstract class RedisCacheDAO<E extends IPK> extends DbDAO<E> {
         if (CollectionUtils.isEmpty(coll)) {
             return;
         }
+        List<Serializable> ids = coll.stream().map(IPK::pkVal).collect(Collectors.toList());
+        // 先记录变动，正在进行的刷新不会再用旧数据覆盖
+        markChanged(ids);
         RMap<Serializable, E> cache = getCache();
-        cache.putAll(coll.stream().collect(Collectors.toMap(IPK::pkVal, u -> u)));
+        cache.putAll(coll.stream().collect(Collectors.toMap(IPK::pkVal, u -> u, (u1, u2) -> u2)), WRITE_BATCH_SIZE);
 
-        RBloomFilter<Serializable> bloomFilter = getBloomFilter();
-        coll.forEach(e -> bloomFilter.add(e.pkVal()));
+        RedisBloomFilter<Serializable> bloomFilter = getBloomFilter();
+        RMapCache<Serializable, Boolean> tombstones = getTombstones();
+        for (List<Serializable> part : ListUtils.partition(ids, WRITE_BATCH_SIZE)) {
+            bloomFilter.addAll(part);
+            tombstones.fastRemove(part.toArray(new Serializable[0]));
+        }
     }
 
     @Override
     public final void clear() {
         getCache().clear();
         getBloomFilter().delete();
+        getTombstones().delete();
+        getChanged().delete();
     }
 
     @Override
     public void deleteBatchIds(Collection<Serializable> ids) {
         // bloom好像没有删除的概念？
         // 可能是因为hash冲突的原因，一个数据对应一个hash，但hash可能对应复数数据，如果删除了这个数据对应的hash，就会导致hash对应的其它数据被误判不存在，无法确保bloom不存在则必定不存在的性质
-        // TODO CIdea: bloom怎么应对删除问题，如果一个数据已经被删除，但bloom仍旧存在，就会一直去加载。思考方案一：用空对象覆盖缓存取代删除
-        // RBloomFilter<Serializable> bloomFilter = redissonClient.getBloomFilter(getBloomKey());
-        RMap<Serializable, E> cache = getCache();
-        ids.forEach(cache::remove);
+        // 删除后bloom仍判断存在，用有过期时间的空值标记已删除，避免一直去加载；bloom在下次全量刷新重建时清除
+        if (CollectionUtils.isEmpty(ids)) {
+            return;
+        }
+        markChanged(ids);
+        getCache().fastRemove(ids.toArray(new Serializable[0]));
+        putTombstones(ids);
     }
 
-    private String getLockKey() {
-        return cacheKey() + ":lock";
+    /**
+     * 空值过期时间，毫秒
+     * 已删除、数据源中不存在的id在过期前不再访问数据源，过期后重新加载一次
+     */
+    protected long nullTtl() {
+        return TimeUnit.MINUTES.toMillis(5);
+    }
+
+    private void putTombstones(Collection<Serializable> ids) {
+        if (CollectionUtils.isEmpty(ids)) {
+            return;
+        }
+        Map<Serializable, Boolean> tombstones = new HashMap<>();
+        ids.forEach(id -> tombstones.put(id, Boolean.TRUE));
+        getTombstones().putAll(tombstones, nullTtl(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 空值，K-id
+     */
+    private RMapCache<Serializable, Boolean> getTombstones() {
+        return redissonClient.getMapCache(cacheKey() + ":null");
+    }
+
+    /**
+     * 变动的id，K-id，score-变动时间，刷新时不覆盖、不删除刷新开始后变动的id
+     */
+    private RScoredSortedSet<Serializable> getChanged() {
+        return redissonClient.getScoredSortedSet(cacheKey() + ":changed");
+    }
+
+    private String getLoadingKey(Serializable id) {
+        return cacheKey() + ":loading:" + id;
+    }
+
+    private String getWatermarkKey() {
+        return cacheKey() + ":watermark";
     }
 
     private RMap<Serializable, E> getCache() {
         // TODO 若redis挂掉则改用本地缓存，避免雪崩
-        // TODO CIdea: 本地缓存技术比较多，SPI结合预设方案
         String cacheKey = cacheKey() + ":cache";
-        return redissonClient.getMap(cacheKey);
+        Codec codec = codec();
+        LocalCachedMapOptions<Serializable, E> options = localCacheOptions();
+        if (options == null) {
+            return codec == null ? redissonClient.getMap(cacheKey) : redissonClient.getMap(cacheKey, codec);
+        }
+        // 每次getLocalCachedMap都会新建本地缓存和订阅，只能创建一次
+        RLocalCachedMap<Serializable, E> localCache = this.localCache;
+        if (localCache == null) {
+            synchronized (this) {
+                localCache = this.localCache;
+                if (localCache == null) {
+                    localCache = codec == null ? redissonClient.getLocalCachedMap(cacheKey, options) : redissonClient.getLocalCachedMap(cacheKey, codec, options);
+                    this.localCache = localCache;
+                }
+            }
+        }
+        return localCache;
     }
 
-    private RBloomFilter<Serializable> getBloomFilter() {
-        String bloomKey = cacheKey() + ":bloom";
-        RBloomFilter<Serializable> bloomFilter = redissonClient.getBloomFilter(bloomKey);
-        bloomFilter.tryInit(1000, 0.001);
+    private RedisBloomFilter<Serializable> getBloomFilter() {
+        RedisBloomFilter<Serializable> bloomFilter = this.bloomFilter;
+        if (bloomFilter == null) {
+            bloomFilter = new RedisBloomFilter<>(redissonClient, cacheKey() + ":bloom");
+            this.bloomFilter = bloomFilter;
+        }
+        if (!bloomFilter.isExists()) {
+            bloomFilter.tryInit(expectedInsertions(), falseProbability());
+        }
         return bloomFilter;
     }
 
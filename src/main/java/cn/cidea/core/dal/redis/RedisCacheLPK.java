@@ -2,68 +2,298 @@ package cn.cidea.core.dal.redis;
 
 import cn.cidea.core.utils.function.IPK;
 import com.baomidou.mybatisplus.extension.activerecord.Model;
+import lombok.Data;
+import org.apache.commons.collections4.CollectionUtils;
 import org.apache.commons.collections4.MapUtils;
+import org.redisson.api.BatchOptions;
+import org.redisson.api.RBatch;
+import org.redisson.api.RFuture;
 import org.redisson.api.RMapCache;
+import org.redisson.api.RMapCacheAsync;
 import org.redisson.api.RedissonClient;
+import org.redisson.client.codec.Codec;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.util.Assert;
 
 import java.io.Serializable;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
 /**
  * 缓存逻辑主键-》物理主键
+ * 同时维护物理主键-》逻辑主键集合的反向映射，可按物理主键删除；可通过{@link #ttl()}、{@link #maxIdle()}限制映射的保留时间
  * @author: CIdea
  */
 public abstract class RedisCacheLPK<T extends IPK> {
 
     @Autowired
     private RedissonClient redissonClient;
+    @Autowired(required = false)
+    protected CacheMetrics metrics = CacheMetrics.NOOP;
 
     private static final String NULL = "NULL";
-    private static final String SPLIT = ":";
+    private static final char SPLIT = ':';
+    private static final char ESCAPE = '\\';
+    /**
+     * 批量写入时每批数量
+     */
+    private static final int BATCH_SIZE = 1000;
+    /**
+     * 拼接逻辑主键的缓冲，每个线程复用
+     */
+    private static final ThreadLocal<StringBuilder> BUFFER = ThreadLocal.withInitial(() -> new StringBuilder(64));
+
+    /**
+     * {@link #lpkf()}的结果，首次使用时获取一次
+     */
+    private volatile List<Function<T, ?>> extractors;
 
     public abstract String cacheKey();
 
     public abstract List<Function<T, ?>> lpkf();
 
+    /**
+     * 各字段值用':'拼接，null为"NULL"
+     * 值中的'\'、':'转义为"\\"、"\:"，不同的值拼接后不会相同；不含这两个字符的值与转义前一致
+     */
     private String lpk(T t){
-        List<Function<T, ?>> lpkf = lpkf();
-        Assert.notEmpty(lpkf, this.getClass() + "lpkf not be empty");
-        List<String> lpk = new ArrayList<>();
-        for (Function<T, ?> function : lpkf) {
-            String str = Optional.ofNullable(function.apply(t)).map(Object::toString).orElse(NULL);
-            Assert.doesNotContain(str, SPLIT, "lpk value can't contain keyword '" + SPLIT + "'");
-            lpk.add(str);
+        List<Function<T, ?>> extractors = extractors();
+        StringBuilder sb = BUFFER.get();
+        sb.setLength(0);
+        for (int i = 0; i < extractors.size(); i++) {
+            if (i > 0) {
+                sb.append(SPLIT);
+            }
+            Object val = extractors.get(i).apply(t);
+            if (val == null) {
+                sb.append(NULL);
+                continue;
+            }
+            String str = val.toString();
+            for (int j = 0; j < str.length(); j++) {
+                char c = str.charAt(j);
+                if (c == SPLIT || c == ESCAPE) {
+                    sb.append(ESCAPE);
+                }
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private List<Function<T, ?>> extractors() {
+        List<Function<T, ?>> extractors = this.extractors;
+        if (extractors == null) {
+            extractors = lpkf();
+            Assert.notEmpty(extractors, this.getClass() + "lpkf not be empty");
+            extractors = new ArrayList<>(extractors);
+            this.extractors = extractors;
         }
-        return lpk.stream().collect(Collectors.joining(SPLIT));
+        return extractors;
+    }
+
+    /**
+     * 缓存数据的编解码，默认使用{@link RedissonClient}的编解码
+     * 可选{@link Codecs}中的紧凑二进制方案，修改后已有数据无法解码，需要先清空或更换{@link #cacheKey()}
+     *
+     * @return null-默认
+     */
+    protected Codec codec() {
+        return null;
+    }
+
+    /**
+     * 映射的过期时间，毫秒，0-不过期
+     */
+    protected long ttl() {
+        return 0;
     }
 
+    /**
+     * 映射的最大空闲时间，毫秒，超过未读取则过期，0-不限
+     * 只作用于正向映射；反向映射查找时不读取，只按{@link #ttl()}过期，不会先于仍在读取的正向映射过期
+     */
+    protected long maxIdle() {
+        return 0;
+    }
+
+    /**
+     * 逻辑主键-》物理主键
+     */
     private RMapCache<String, Serializable> cache() {
-        return redissonClient.getMapCache(cacheKey());
+        return mapCache(cacheKey());
+    }
+
+    /**
+     * 反向映射，物理主键-》逻辑主键集合，按物理主键删除、更新时找到旧的逻辑主键
+     * 集合用{@link TreeSet}，编码后元素顺序固定，按值比较删除、替换时解码再编码的结果一致
+     */
+    private RMapCache<Serializable, TreeSet<String>> reverse() {
+        return mapCache(getReverseKey());
+    }
+
+    private <K, V> RMapCache<K, V> mapCache(String name) {
+        Codec codec = codec();
+        return codec == null ? redissonClient.getMapCache(name) : redissonClient.getMapCache(name, codec);
+    }
+
+    private <K, V> RMapCacheAsync<K, V> mapCache(RBatch batch, String name) {
+        Codec codec = codec();
+        return codec == null ? batch.getMapCache(name) : batch.getMapCache(name, codec);
+    }
+
+    private String getReverseKey() {
+        return cacheKey() + SPLIT + "pk";
     }
 
     public Serializable find(T entity){
-        return cache().get(lpk(entity));
+        Serializable pk = cache().get(lpk(entity));
+        if (pk == null) {
+            metrics.miss(cacheKey(), 1);
+        } else {
+            metrics.hit(cacheKey(), "redis", 1);
+        }
+        return pk;
+    }
+
+    /**
+     * 批量查找，一次往返
+     * 未命中的可从数据源一次查出后{@link #save(Collection)}回填
+     */
+    public FindResult<T> findAll(Collection<T> list){
+        FindResult<T> result = new FindResult<>();
+        if (CollectionUtils.isEmpty(list)) {
+            return result;
+        }
+        List<T> entities = new ArrayList<>(list);
+        List<String> keys = entities.stream().map(this::lpk).collect(Collectors.toList());
+        Map<String, Serializable> cached = cache().getAll(new HashSet<>(keys));
+        for (int i = 0; i < entities.size(); i++) {
+            Serializable pk = cached.get(keys.get(i));
+            result.getPks().add(pk);
+            if (pk == null) {
+                result.getMisses().add(entities.get(i));
+            }
+        }
+        metrics.hit(cacheKey(), "redis", entities.size() - result.getMisses().size());
+        metrics.miss(cacheKey(), result.getMisses().size());
+        return result;
     }
 
+    /**
+     * 写入映射，同时维护反向映射，同一物理主键的多个逻辑主键都写入
+     * 正向映射的写入和反向映射的替换在同一事务（MULTI）中执行，替换时取回旧的逻辑主键集合；集群模式下两个映射不在同一节点时不保证原子
+     * 物理主键原来对应的逻辑主键本次没有的（逻辑字段有修改），删除仍指向该物理主键的旧映射
+     */
     public void save(Collection<T> list){
+        if (CollectionUtils.isEmpty(list)) {
+            return;
+        }
         Map<String, Serializable> collect = list.parallelStream().collect(Collectors.toMap(this::lpk, IPK::pkVal, (s1, s2) -> s1));
-        cache().putAll(collect);
+        Map<Serializable, TreeSet<String>> reverse = new HashMap<>();
+        collect.forEach((lpk, pk) -> reverse.computeIfAbsent(pk, k -> new TreeSet<>()).add(lpk));
+        String cacheKey = cacheKey();
+        String reverseKey = getReverseKey();
+        long ttl = ttl();
+        long maxIdle = maxIdle();
+        List<Serializable> pks = new ArrayList<>(reverse.keySet());
+        for (int i = 0; i < pks.size(); i += BATCH_SIZE) {
+            List<Serializable> part = pks.subList(i, Math.min(i + BATCH_SIZE, pks.size()));
+            RBatch batch = redissonClient.createBatch(BatchOptions.defaults().executionMode(BatchOptions.ExecutionMode.REDIS_WRITE_ATOMIC));
+            RMapCacheAsync<String, Serializable> forwardAsync = mapCache(batch, cacheKey);
+            RMapCacheAsync<Serializable, TreeSet<String>> reverseAsync = mapCache(batch, reverseKey);
+            List<RFuture<TreeSet<String>>> olds = new ArrayList<>(part.size());
+            for (Serializable pk : part) {
+                for (String lpk : reverse.get(pk)) {
+                    forwardAsync.fastPutAsync(lpk, pk, ttl, TimeUnit.MILLISECONDS, maxIdle, TimeUnit.MILLISECONDS);
+                }
+                olds.add(reverseAsync.putAsync(pk, reverse.get(pk), ttl, TimeUnit.MILLISECONDS));
+            }
+            batch.execute();
+            RBatch stale = null;
+            for (int j = 0; j < part.size(); j++) {
+                Set<String> oldLpks = olds.get(j).toCompletableFuture().join();
+                if (oldLpks == null) {
+                    continue;
+                }
+                Serializable pk = part.get(j);
+                for (String oldLpk : oldLpks) {
+                    if (!reverse.get(pk).contains(oldLpk)) {
+                        if (stale == null) {
+                            stale = redissonClient.createBatch(BatchOptions.defaults().skipResult());
+                        }
+                        // 只删除仍指向该物理主键的旧映射
+                        mapCache(stale, cacheKey).removeAsync(oldLpk, pk);
+                    }
+                }
+            }
+            if (stale != null) {
+                stale.execute();
+            }
+        }
     }
 
     public void clear(){
         cache().clear();
+        reverse().clear();
     }
 
+    /**
+     * 按逻辑主键删除，反向映射中只去掉该逻辑主键，按值比较替换，并发修改时不覆盖
+     */
     public void delete(T entity){
-        cache().get(lpk(entity));
+        String lpk = lpk(entity);
+        Serializable pk = cache().remove(lpk);
+        if (pk == null) {
+            return;
+        }
+        RMapCache<Serializable, TreeSet<String>> reverse = reverse();
+        TreeSet<String> lpks = reverse.get(pk);
+        if (lpks == null || !lpks.contains(lpk)) {
+            return;
+        }
+        if (lpks.size() == 1) {
+            reverse.remove(pk, lpks);
+        } else {
+            TreeSet<String> remain = new TreeSet<>(lpks);
+            remain.remove(lpk);
+            reverse.replace(pk, lpks, remain);
+        }
     }
 
-    @Deprecated
+    /**
+     * 按物理主键删除，通过反向映射找到逻辑主键
+     * 先原子地取出并删除反向映射，再删除仍指向该物理主键的正向映射，并发写入新映射时不会误删
+     */
     public void delete(Serializable pk){
-        // TODO CIdea:
+        if (pk == null) {
+            return;
+        }
+        Set<String> lpks = reverse().remove(pk);
+        if (CollectionUtils.isEmpty(lpks)) {
+            return;
+        }
+        RBatch batch = redissonClient.createBatch(BatchOptions.defaults().skipResult());
+        RMapCacheAsync<String, Serializable> forwardAsync = mapCache(batch, cacheKey());
+        lpks.forEach(lpk -> forwardAsync.removeAsync(lpk, pk));
+        batch.execute();
+    }
+
+    /**
+     * 批量查找结果
+     */
+    @Data
+    public static class FindResult<T> {
+        /**
+         * 物理主键，与查找的实体顺序一致，未命中为null
+         * 不按实体做key，实体的equals、hashCode可能不是按逻辑主键字段
+         */
+        private final List<Serializable> pks = new ArrayList<>();
+        /**
+         * 未命中的实体
+         */
+        private final List<T> misses = new ArrayList<>();
     }
 }
@@ -3,6 +3,12 @@ package cn.cidea.core.dal.redis;
 import cn.cidea.core.utils.function.IPK;
 import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import com.baomidou.mybatisplus.core.metadata.TableInfo;
+import com.baomidou.mybatisplus.core.metadata.TableInfoHelper;
+import com.baomidou.mybatisplus.core.toolkit.ReflectionKit;
+import com.baomidou.mybatisplus.core.toolkit.Wrappers;
+import com.baomidou.mybatisplus.core.toolkit.support.SFunction;
+import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.collections4.CollectionUtils;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -10,7 +16,10 @@ import org.springframework.beans.factory.annotation.Autowired;
 import java.io.Serializable;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Date;
+import java.util.Objects;
 import java.util.Set;
+import java.util.stream.Collectors;
 import java.util.function.Function;
 import java.util.function.Supplier;
 
@@ -46,4 +55,69 @@ public abstract class RedisCacheMapper<M extends BaseMapper<E>, E extends IPK> e
         return () -> mapper.selectList(new QueryWrapper<>());
     }
 
+    /**
+     * 全量刷新时每页数量，大于0时开启分页加载{@link #loadPage()}
+     * 分页语句由mybatisplus分页插件（PaginationInnerInterceptor）按方言生成，需要已配置
+     *
+     * @return 0-不分页，使用{@link #loadAll()}
+     */
+    protected int pageSize() {
+        return 0;
+    }
+
+    /**
+     * 按主键keyset分页：where pk &gt; last order by pk，每页pageSize条，每页走主键索引，不随页数变慢
+     */
+    @Override
+    protected Function<Serializable, Collection<E>> loadPage() {
+        int pageSize = pageSize();
+        if (pageSize <= 0) {
+            return null;
+        }
+        TableInfo tableInfo = tableInfo();
+        if (tableInfo == null || !tableInfo.havePK()) {
+            return null;
+        }
+        String keyColumn = tableInfo.getKeyColumn();
+        // 不查询总数
+        return last -> mapper.selectPage(new Page<>(1, pageSize, false), new QueryWrapper<E>()
+                .gt(last != null, keyColumn, last)
+                .orderByAsc(keyColumn)).getRecords();
+    }
+
+    /**
+     * 更新时间字段，用于增量刷新，如：E::getUpdateTime
+     * @return null-不支持增量刷新
+     */
+    protected SFunction<E, ?> updateTimeColumn() {
+        return null;
+    }
+
+    @Override
+    protected Function<Date, Collection<E>> loadSince() {
+        SFunction<E, ?> column = updateTimeColumn();
+        if (column == null) {
+            return null;
+        }
+        return since -> mapper.selectList(Wrappers.<E>lambdaQuery().ge(column, since));
+    }
+
+    @Override
+    protected Supplier<Set<Serializable>> loadAllIds() {
+        TableInfo tableInfo = tableInfo();
+        if (tableInfo == null || !tableInfo.havePK()) {
+            return null;
+        }
+        // 只查主键列，映射为实体后取pkVal，与缓存的key类型一致（selectObjs返回jdbc原始类型，如BigInteger、Integer）
+        return () -> mapper.selectList(new QueryWrapper<E>().select(tableInfo.getKeyColumn())).stream()
+                .map(IPK::pkVal)
+                .filter(Objects::nonNull)
+                .collect(Collectors.toSet());
+    }
+
+    private TableInfo tableInfo() {
+        Class<?> entityClass = ReflectionKit.getSuperClassGenericType(this.getClass(), RedisCacheMapper.class, 1);
+        return TableInfoHelper.getTableInfo(entityClass);
+    }
+
 }
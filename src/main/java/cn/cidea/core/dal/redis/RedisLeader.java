@@ -0,0 +1,83 @@
+package cn.cidea.core.dal.redis;
+
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RAtomicLong;
+import org.redisson.api.RBucket;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.redisson.client.codec.LongCodec;
+import org.springframework.util.Assert;
+
+import java.util.function.LongConsumer;
+
+/**
+ * 集群选主，定时任务每个周期只由一个节点执行
+ * 租约：不指定持有时间的{@link RLock#tryLock()}，持有期间看门狗续期，节点宕机后租约自动过期
+ * 围栏令牌：每次当选加1，执行中可用{@link #isCurrent(long)}判断是否已有新的节点当选，避免旧节点覆盖新结果
+ * 执行时间：记录最近一次执行的开始时间，同一周期内后拿到租约的节点跳过
+ *
+ * @author: CIdea
+ */
+@Slf4j
+public class RedisLeader {
+
+    /**
+     * 周期内已执行的判断余量，定时任务各节点的触发时间有偏差
+     */
+    private static final double INTERVAL_TOLERANCE = 0.9;
+
+    private final RedissonClient redissonClient;
+    private final String name;
+
+    public RedisLeader(RedissonClient redissonClient, String name) {
+        Assert.notNull(redissonClient, "redissonClient is not be null");
+        Assert.hasText(name, "name is not be null");
+        this.redissonClient = redissonClient;
+        this.name = name;
+    }
+
+    /**
+     * 当选则执行，否则跳过
+     *
+     * @param interval 周期，毫秒，周期内已有节点执行过时跳过
+     * @param task     任务，参数为围栏令牌
+     * @return 是否执行
+     */
+    public boolean runIfLeader(long interval, LongConsumer task) {
+        RLock lock = redissonClient.getLock(name + ":leader");
+        if (!lock.tryLock()) {
+            log.debug("other node is leading, name = {}", name);
+            return false;
+        }
+        try {
+            long start = System.currentTimeMillis();
+            RBucket<Long> last = redissonClient.getBucket(name + ":last", LongCodec.INSTANCE);
+            Long lastStart = last.get();
+            if (lastStart != null && start - lastStart < interval * INTERVAL_TOLERANCE) {
+                log.debug("already run in this interval, name = {}, last = {}", name, lastStart);
+                return false;
+            }
+            long token = fencing().incrementAndGet();
+            log.info("run as leader, name = {}, token = {}", name, token);
+            task.accept(token);
+            last.set(start);
+            return true;
+        } finally {
+            if (lock.isHeldByCurrentThread()) {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * 令牌是否仍是最新的，即执行期间没有其它节点当选
+     */
+    public boolean isCurrent(long token) {
+        return fencing().get() == token;
+    }
+
+    private RAtomicLong fencing() {
+        return redissonClient.getAtomicLong(name + ":fencing");
+    }
+
+}
@@ -1,10 +1,16 @@
 package cn.cidea.core.utils;
 
 import cn.cidea.core.utils.math.Fraction;
-import com.alibaba.fastjson.JSONObject;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.ExecutionError;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import lombok.Data;
 import lombok.Getter;
 import lombok.Setter;
+import lombok.ToString;
 import lombok.experimental.Accessors;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.collections4.CollectionUtils;
@@ -15,6 +21,8 @@ import java.io.Serializable;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
 import java.util.stream.Collectors;
 
 /**
@@ -27,10 +35,7 @@ import java.util.stream.Collectors;
 public class PackingConvert {
 
     // 单位
-    private static final String UNIT_REG = "(mm|cm|m|μg|ug|mg|g|kg|t|kcal|s|ca|kit|react|reactions|run|nmol|mlar|mgx|pack|p|r|ke|b|微克|合|毫克|平方米|毫居|卡|小袋|克|吸|千克|反应|吨|片|#|粒|片瓶|单|支|ml|iul|l|vl|ul|nl|mci|管|毫升|升|件|泡|复方片|复方栓|复方粒|复方丸|复方胶囊|复方膏|复方|瓶|袋|盒|枚|张|只|罐|包|抽|帖|散|板|套|本|听|桶|个|卷|份|条|根|扳|筒|掀|箱|贴|滴|批|喷|次|对|块|人次|人份|孔|每人|位|揿|付|种|a\\.b|rxns|丸|miu|kiu|au|iu|su|ui|mu|u|ku|lsu|bu|eu|pe|d|单位|pna|pna单位|万u|万iu|百万单位|万单位|国际单位|unit|units|亿活菌|axaiu)";
-    private static final String UNIT_REG_END = UNIT_REG + "$";
-    // 数字正则
-    private static final String NUMBER_REG_END = RegexStr.NUMBER + "$";
+    private static final StringSeqUtils.Suffixes UNITS = new StringSeqUtils.Suffixes("mm", "cm", "m", "μg", "ug", "mg", "g", "kg", "t", "kcal", "s", "ca", "kit", "react", "reactions", "run", "nmol", "mlar", "mgx", "pack", "p", "r", "ke", "b", "微克", "合", "毫克", "平方米", "毫居", "卡", "小袋", "克", "吸", "千克", "反应", "吨", "片", "#", "粒", "片瓶", "单", "支", "ml", "iul", "l", "vl", "ul", "nl", "mci", "管", "毫升", "升", "件", "泡", "复方片", "复方栓", "复方粒", "复方丸", "复方胶囊", "复方膏", "复方", "瓶", "袋", "盒", "枚", "张", "只", "罐", "包", "抽", "帖", "散", "板", "套", "本", "听", "桶", "个", "卷", "份", "条", "根", "扳", "筒", "掀", "箱", "贴", "滴", "批", "喷", "次", "对", "块", "人次", "人份", "孔", "每人", "位", "揿", "付", "种", "a.b", "rxns", "丸", "miu", "kiu", "au", "iu", "su", "ui", "mu", "u", "ku", "lsu", "bu", "eu", "pe", "d", "单位", "pna", "pna单位", "万u", "万iu", "百万单位", "万单位", "国际单位", "unit", "units", "亿活菌", "axaiu");
 
     // 运算符
     private static final char[] multiplyOpt = new char[]{'*', '/', 'x', '×', '／', '＊', '\\'};
@@ -38,10 +43,19 @@ public class PackingConvert {
     private static final String DEF_UNIT = "件";
     private static final RoundingMode ROUNDING_MODE = RoundingMode.CEILING;
     private static final int ROUNDING_SCALE = 8;
+    private static final int DEF_CACHE_SIZE = 10000;
     /**
-     * K1-规格值；K2-单位；V-规格节点
+     * K-规格值+单位；V-规格节点，非法规格串缓存{@link Optional#empty()}，避免重复解析
+     * 默认按数量淘汰（LRU），可通过{@link #setCache(Cache)}替换，如按权重淘汰
      */
-    private static Map<String, Map<String, Node>> cache = new HashMap<>();
+    private static volatile Cache<SpecKey, Optional<Node>> cache = CacheBuilder.newBuilder()
+            .maximumSize(DEF_CACHE_SIZE)
+            .recordStats()
+            .build();
+    /**
+     * 批量解析时收集当前线程解析出的非法片段，只在{@link #parseAll(Collection, ForkJoinPool)}中设置
+     */
+    private static final ThreadLocal<List<String>> ILLEGAL = new ThreadLocal<>();
     /**
      * 通用单位
      */
@@ -68,98 +82,258 @@ public class PackingConvert {
      * @param unit       单位，对应规格
      */
     public static BigDecimal convert(BigDecimal cnt, String cntUnit, String targetUnit, String spec, String unit) {
+        return convert(cnt, cntUnit, targetUnit, spec, unit, null);
+    }
+
+    /**
+     * 同{@link #convert(BigDecimal, String, String, String, String)}，日志只在debug级别输出
+     * 需要排查转换过程时传入trace，记录命中的同义词、是否走通用单位、各段系数，不传时没有额外开销
+     *
+     * @param trace 转换过程，可为null
+     */
+    public static BigDecimal convert(BigDecimal cnt, String cntUnit, String targetUnit, String spec, String unit, ConvertTrace trace) {
         cntUnit = StringUtils.lowerCase(cntUnit);
         targetUnit = StringUtils.lowerCase(targetUnit);
         spec = StringUtils.lowerCase(spec);
-        unit = StringUtils.lowerCase(unit);
-        log.info("cnt = {}, cntUnit = {}, targetUnit = {}, spec = {}, unit = {}", cnt, cntUnit, targetUnit, spec, unit);
-        if (cnt == null || StringUtils.isAnyBlank(cntUnit, targetUnit, spec)) {
-            log.warn("primary param can't be null");
-            return null;
+        unit = StringUtils.defaultIfBlank(StringUtils.lowerCase(unit), DEF_UNIT);
+        if (log.isDebugEnabled()) {
+            log.debug("cnt = {}, cntUnit = {}, targetUnit = {}, spec = {}, unit = {}", cnt, cntUnit, targetUnit, spec, unit);
         }
-        if (StringUtils.isBlank(unit)) {
-            unit = DEF_UNIT;
+        if (trace != null) {
+            trace.setCnt(cnt).setCntUnit(cntUnit).setTargetUnit(targetUnit).setSpec(spec).setUnit(unit);
+        }
+        if (cnt == null || StringUtils.isAnyBlank(cntUnit, targetUnit, spec)) {
+            log.debug("primary param can't be null");
+            return fail(trace, "primary param can't be null");
         }
         if (cntUnit.equals(targetUnit)) {
             // 单位相同，不转换
-            log.info("unit equals");
+            log.debug("unit equals");
+            if (trace != null) {
+                trace.setWeight(Fraction.ONE).setResult(cnt);
+            }
             return cnt;
         }
         Node root = buildTree(spec, unit);
         if (root == null) {
-            return null;
+            return fail(trace, "illegal spec");
         }
-        Node cur = null;
-        // 当前单位或同义词查找
-        for (String term : Synonyms.get(cntUnit)) {
-            cur = Optional.ofNullable(root.getEdges().get(term)).map(Edge::getAccess).orElse(null);
-            if (cur != null) {
-                log.info("cntUnit = {}", term);
-                break;
+        if (trace != null) {
+            trace(trace, root);
+        }
+        Compiled compiled = root.compiled();
+        if (!compiled.contains(cntUnit)) {
+            if (log.isDebugEnabled()) {
+                log.debug("spec {} can't find cntUnit {}, root edges = {}", spec, cntUnit, root.getEdges().keySet());
             }
+            return fail(trace, "can't find cntUnit");
         }
-        // 通用单位查找
-        Fraction curWeight = Fraction.ONE;
-        if (cur == null) {
-            for (Node generalUnit : GENERAL_UNIT_TREE) {
-                Edge edge = generalUnit.getEdges().get(cntUnit);
-                if (edge == null) {
-                    continue;
+        Fraction weight = compiled.weight(cntUnit, targetUnit);
+        if (weight == null) {
+            if (log.isDebugEnabled()) {
+                log.debug("spec {} can't find targetUnit {}, root edges = {}", spec, targetUnit, root.getEdges().keySet());
+            }
+            return fail(trace, "can't find targetUnit");
+        }
+        BigDecimal targetCnt = multiply(cnt, weight);
+        if (log.isDebugEnabled()) {
+            log.debug("target = {}{}", targetCnt, targetUnit);
+        }
+        if (trace != null) {
+            trace.setWeight(weight).setResult(targetCnt);
+        }
+        return targetCnt;
+    }
+
+    private static BigDecimal fail(ConvertTrace trace, String error) {
+        if (trace != null) {
+            trace.setError(error);
+        }
+        return null;
+    }
+
+    /**
+     * 按未编译的转换图重新查找一遍，记录查找过程
+     */
+    private static void trace(ConvertTrace trace, Node root) {
+        Map<String, List<String>> synonyms = Synonyms.ref;
+        trace.setUnits(new ArrayList<>(root.getEdges().keySet()));
+        Edge cur = findCur(root, synonyms, trace.getCntUnit(), trace);
+        if (cur != null) {
+            trace.setCurWeight(cur.getWeight());
+            trace.setTargetWeight(findTarget(cur.getAccess(), synonyms, trace.getCntUnit(), trace.getTargetUnit(), trace));
+        }
+    }
+
+    /**
+     * 批量转换，结果顺序与入参一致，无法转换的项为null
+     * 按规格串+单位分组，每组只解析一次转换图，每组内相同的当前单位+目标单位只查找一次转换系数
+     * 适合结算等大批量场景，开销取决于规格串的种类数，而不是行数
+     *
+     * @param params 转换参数
+     * @return 目标单位数量
+     */
+    public static List<BigDecimal> convert(Collection<ConvertParam> params) {
+        if (CollectionUtils.isEmpty(params)) {
+            return new ArrayList<>(0);
+        }
+        // K-规格值+单位；V-规格节点，转换系数从节点的编译转换表中获取
+        Map<SpecKey, Optional<Node>> groups = new HashMap<>();
+        // 转换异常的规格，每组只输出一次日志
+        Set<SpecKey> errors = new HashSet<>();
+        List<BigDecimal> result = new ArrayList<>(params.size());
+        for (ConvertParam param : params) {
+            String cntUnit = StringUtils.lowerCase(param.getCntUnit());
+            String targetUnit = StringUtils.lowerCase(param.getTargetUnit());
+            String spec = StringUtils.lowerCase(param.getSpec());
+            String unit = StringUtils.defaultIfBlank(StringUtils.lowerCase(param.getUnit()), DEF_UNIT);
+            if (param.getCnt() == null || StringUtils.isAnyBlank(cntUnit, targetUnit, spec)) {
+                result.add(null);
+                continue;
+            }
+            if (cntUnit.equals(targetUnit)) {
+                result.add(param.getCnt());
+                continue;
+            }
+            SpecKey key = new SpecKey(spec, unit);
+            try {
+                Optional<Node> root = groups.computeIfAbsent(key, k -> Optional.ofNullable(buildTree(spec, unit)));
+                Fraction weight = root.map(n -> n.compiled().weight(cntUnit, targetUnit)).orElse(null);
+                result.add(weight == null ? null : multiply(param.getCnt(), weight));
+            } catch (RuntimeException e) {
+                // 单行异常不影响整批，如非法括号、0系数
+                if (errors.add(key)) {
+                    log.warn("convert error, param = {}", param, e);
                 }
-                // 含通用单位
-                for (Map.Entry<String, Edge> entry : generalUnit.getEdges().entrySet()) {
-                    Edge convertUnitEdge = root.getEdges().get(entry.getKey());
-                    if (convertUnitEdge != null) {
-                        // 转化单位命中，用转化后单位做cur，并加上权重
-                        cur = convertUnitEdge.getAccess();
-                        // curWeight = entry.getValue().getAccess().getEdges().get(entry.getKey()).getWeight();
-                        curWeight = generalUnit.getEdges().get(cntUnit).getAccess().getEdges().get(entry.getKey()).getWeight();
-                        break;
-                    }
-                    // cur = Optional.ofNullable(value).map(Edge::getAccess).orElse(null);
-                    // if (cur != null) {
-                    //     // 命中通用单位
-                    //     log.info("cntUnit = {}", entry.getKey());
-                    //     break;
-                    // }
+                groups.putIfAbsent(key, Optional.empty());
+                result.add(null);
+            }
+        }
+        log.info("batch convert, size = {}, spec size = {}", params.size(), groups.size());
+        return result;
+    }
+
+    /**
+     * 编译转换图，生成所有可达单位之间的转换系数表，包含同义词和通用单位
+     */
+    private static Compiled compile(Node root, Map<String, List<String>> synonyms) {
+        // 转换图中所有单位
+        Set<String> units = new LinkedHashSet<>();
+        Set<Node> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<Node> queue = new ArrayDeque<>();
+        queue.add(root);
+        visited.add(root);
+        while (!queue.isEmpty()) {
+            for (Map.Entry<String, Edge> entry : queue.poll().getEdges().entrySet()) {
+                units.add(entry.getKey());
+                if (visited.add(entry.getValue().getAccess())) {
+                    queue.add(entry.getValue().getAccess());
                 }
-                if (cur != null) {
-                    break;
+            }
+        }
+        // 通用单位和同义词
+        for (Node generalUnit : GENERAL_UNIT_TREE) {
+            units.addAll(generalUnit.getEdges().keySet());
+        }
+        for (String u : new ArrayList<>(units)) {
+            units.addAll(Synonyms.get(synonyms, u));
+        }
+
+        Map<String, Integer> index = new HashMap<>(units.size() * 2);
+        for (String u : units) {
+            index.put(u, index.size());
+        }
+        Fraction[][] weights = new Fraction[units.size()][];
+        for (Map.Entry<String, Integer> cnt : index.entrySet()) {
+            Edge cur = findCur(root, synonyms, cnt.getKey(), null);
+            if (cur == null) {
+                continue;
+            }
+            Fraction[] row = new Fraction[units.size()];
+            for (Map.Entry<String, Integer> target : index.entrySet()) {
+                Fraction targetWeight = findTarget(cur.getAccess(), synonyms, cnt.getKey(), target.getKey(), null);
+                if (targetWeight != null) {
+                    row[target.getValue()] = cur.getWeight().multiply(targetWeight);
                 }
             }
+            weights[cnt.getValue()] = row;
         }
-        if (cur == null) {
-            log.error("spec {} can't find cntUnit {}", spec, cntUnit);
-            log.info("root edges = {}", JSONObject.toJSONString(root.getEdges().keySet()));
-            return null;
+        return new Compiled(synonyms, index, weights);
+    }
+
+    /**
+     * 查找当前单位所在节点
+     *
+     * @return 权重为当前单位到节点单位的系数，找不到返回null
+     */
+    private static Edge findCur(Node root, Map<String, List<String>> synonyms, String cntUnit, ConvertTrace trace) {
+        // 当前单位或同义词查找
+        for (String term : Synonyms.get(synonyms, cntUnit)) {
+            Edge edge = root.getEdges().get(term);
+            if (edge != null) {
+                if (trace != null) {
+                    trace.setCntMatch(term);
+                }
+                return new Edge(Fraction.ONE, edge.getAccess());
+            }
         }
-        Fraction targetWeight = null;
-        for (String term : Synonyms.get(targetUnit)) {
-            Edge targetEdge = cur.getEdges().get(term);
-            if (targetEdge != null) {
-                log.info("targetUnit = {}", term);
-                targetWeight = targetEdge.getWeight();
-                break;
+        // 通用单位查找
+        for (Node generalUnit : GENERAL_UNIT_TREE) {
+            Edge edge = generalUnit.getEdges().get(cntUnit);
+            if (edge == null) {
+                continue;
+            }
+            // 含通用单位
+            for (Map.Entry<String, Edge> entry : generalUnit.getEdges().entrySet()) {
+                Edge convertUnitEdge = root.getEdges().get(entry.getKey());
+                if (convertUnitEdge != null) {
+                    // 转化单位命中，用转化后单位做cur，并加上权重
+                    if (trace != null) {
+                        trace.setCntMatch(entry.getKey()).setCntGeneral(true);
+                    }
+                    return new Edge(edge.getAccess().getEdges().get(entry.getKey()).getWeight(), convertUnitEdge.getAccess());
+                }
             }
         }
-        if (targetWeight == null) {
-            for (Node generalUnit : GENERAL_UNIT_TREE) {
-                Edge edge = generalUnit.getEdges().get(targetUnit);
-                if (edge != null) {
-                    // 通用组中含有目标单位
-                    targetWeight = edge.getAccess().getEdges().get(cntUnit).getWeight().reverse();
-                    break;
+        return null;
+    }
+
+    /**
+     * 从当前单位所在节点查找目标单位
+     *
+     * @return 节点到目标单位的系数，找不到返回null
+     */
+    private static Fraction findTarget(Node cur, Map<String, List<String>> synonyms, String cntUnit, String targetUnit, ConvertTrace trace) {
+        for (String term : Synonyms.get(synonyms, targetUnit)) {
+            Edge targetEdge = cur.getEdges().get(term);
+            if (targetEdge != null) {
+                if (trace != null) {
+                    trace.setTargetMatch(term);
                 }
+                return targetEdge.getWeight();
             }
         }
-        if (targetWeight == null) {
-            log.error("spec {} can't find targetUnit {}", spec, targetUnit);
-            log.info("cur edges = {}", JSONObject.toJSONString(cur.getEdges().keySet()));
-            return null;
+        for (Node generalUnit : GENERAL_UNIT_TREE) {
+            Edge edge = generalUnit.getEdges().get(targetUnit);
+            if (edge == null) {
+                continue;
+            }
+            // 通用组中含有目标单位，当前单位不在通用组中时无法转换
+            if (trace != null) {
+                trace.setTargetGeneral(true);
+            }
+            Edge cntEdge = edge.getAccess().getEdges().get(cntUnit);
+            return cntEdge == null ? null : cntEdge.getWeight().reverse();
         }
+        return null;
+    }
+
+    /**
+     * 数量乘以转换系数，保留{@link #ROUNDING_SCALE}位小数，并移除多余的尾0
+     */
+    private static BigDecimal multiply(BigDecimal cnt, Fraction weight) {
         BigDecimal targetCnt = new Fraction(cnt)
-                .multiply(curWeight)
-                .multiply(targetWeight)
+                .multiply(weight)
                 .val(ROUNDING_SCALE, ROUNDING_MODE);
 
         if (targetCnt.scale() > 0) {
@@ -170,20 +344,141 @@ public class PackingConvert {
             // 取消科学计数法，避免一些参数传递toString时出问题
             targetCnt = targetCnt.setScale(0);
         }
-        log.info("target = {}{}", targetCnt, targetUnit);
         return targetCnt;
     }
 
     public static Node buildTree(String spec, String unit) {
-        Map<String, Node> cacheNode = cache.computeIfAbsent(spec, s -> new HashMap<>());
-        if (cacheNode.containsKey(unit)) {
-            return cacheNode.get(unit);
+        try {
+            // 并发未命中时，同一个key只会解析一次，其它线程等待解析结果
+            return cache.get(new SpecKey(spec, unit), () -> Optional.ofNullable(parseTree(spec, unit))).orElse(null);
+        } catch (ExecutionException | UncheckedExecutionException | ExecutionError e) {
+            // 解析异常原样抛出
+            Throwables.throwIfUnchecked(e.getCause());
+            throw new IllegalStateException(e.getCause());
         }
+    }
+
+    private static Node parseTree(String spec, String unit) {
         StringBuilder seq = new StringBuilder(spec);
         parse(seq);
-        Node tree = buildNode(seq, unit);
-        cacheNode.put(unit, tree);
-        return tree;
+        return buildNode(seq, unit);
+    }
+
+    /**
+     * 批量解析规格串，用于校验新的规格目录，同时预热转换图缓存
+     * 在{@link ForkJoinPool#commonPool()}中并行解析
+     *
+     * @see #parseAll(Collection, ForkJoinPool)
+     */
+    public static List<ParseReport> parseAll(Collection<SpecKey> specs) {
+        return parseAll(specs, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * 批量解析规格串，用于校验新的规格目录，同时预热转换图缓存
+     * 每个规格串都会重新解析，以便收集非法片段，解析结果在缓存中不存在时放入
+     *
+     * @param specs 规格串+单位，处理同{@link #convert(BigDecimal, String, String, String, String)}
+     * @param pool  并行解析的线程池
+     * @return 解析报告，顺序与入参一致
+     */
+    public static List<ParseReport> parseAll(Collection<SpecKey> specs, ForkJoinPool pool) {
+        if (CollectionUtils.isEmpty(specs)) {
+            return new ArrayList<>(0);
+        }
+        Assert.notNull(pool, "pool is not be null");
+        long start = System.nanoTime();
+        List<SpecKey> keys = new ArrayList<>(specs);
+        // 在指定的线程池中执行并行流
+        List<ParseReport> reports = pool.submit(() -> keys.parallelStream()
+                .map(PackingConvert::parseReport)
+                .collect(Collectors.toList())).join();
+        log.info("parse all, size = {}, cost = {}ms", reports.size(), (System.nanoTime() - start) / 1000000);
+        return reports;
+    }
+
+    private static ParseReport parseReport(SpecKey spec) {
+        SpecKey key = key(spec.getSpec(), spec.getUnit());
+        ParseReport report = new ParseReport(key);
+        if (StringUtils.isBlank(key.getSpec())) {
+            report.setError("spec is blank");
+            return report;
+        }
+        List<String> illegal = new ArrayList<>();
+        ILLEGAL.set(illegal);
+        long start = System.nanoTime();
+        try {
+            Node root = parseTree(key.getSpec(), key.getUnit());
+            cache.asMap().putIfAbsent(key, Optional.ofNullable(root));
+            if (root != null) {
+                report.setUnits(new ArrayList<>(root.getEdges().keySet()));
+            }
+        } catch (RuntimeException e) {
+            report.setError(e.toString());
+        } finally {
+            report.setNanos(System.nanoTime() - start);
+            ILLEGAL.remove();
+        }
+        report.setIllegal(illegal);
+        return report;
+    }
+
+    /**
+     * 记录非法片段，批量解析时放入报告
+     */
+    private static void illegal(String fragment) {
+        List<String> illegal = ILLEGAL.get();
+        if (illegal != null) {
+            illegal.add(fragment);
+        }
+    }
+
+    /**
+     * 替换转换图缓存
+     * 例：按权重淘汰
+     * <pre>
+     * CacheBuilder.newBuilder()
+     *         .maximumWeight(1000000)
+     *         .weigher((SpecKey k, Optional&lt;Node&gt; v) -&gt; k.getSpec().length())
+     *         .recordStats()
+     *         .build();
+     * </pre>
+     *
+     * @param cache 需要线程安全，同{@link CacheBuilder}构建的缓存
+     */
+    public static void setCache(Cache<SpecKey, Optional<Node>> cache) {
+        Assert.notNull(cache, "cache is not be null");
+        PackingConvert.cache = cache;
+    }
+
+    /**
+     * 转换图缓存统计，命中、加载、淘汰次数等，需要缓存开启{@link CacheBuilder#recordStats()}
+     */
+    public static CacheStats cacheStats() {
+        return cache.stats();
+    }
+
+    /**
+     * 与{@link #convert(BigDecimal, String, String, String, String)}相同的规格串、单位处理，作为缓存key
+     */
+    static SpecKey key(String spec, String unit) {
+        return new SpecKey(StringUtils.lowerCase(spec), StringUtils.defaultIfBlank(StringUtils.lowerCase(unit), DEF_UNIT));
+    }
+
+    /**
+     * 直接放入缓存，如从快照加载的转换图
+     *
+     * @param root null-非法规格串
+     */
+    static void cache(SpecKey key, Node root) {
+        cache.put(key, Optional.ofNullable(root));
+    }
+
+    /**
+     * 缓存中的转换图数量
+     */
+    static long cacheSize() {
+        return cache.size();
     }
 
     /**
@@ -206,7 +501,7 @@ public class PackingConvert {
             // 默认包装
             pkg = DEF_UNIT;
         }
-        Node node = new Node(seq.toString(), pkg);
+        Node node = new Node(key, pkg);
         Node bracketRight = null;
         if (StringSeqUtils.endWithBracket(seq)) {
             // 如果是括号闭符，不管什么含义按整单独处理，另外，有的开闭符不严格匹配，一半中文一半英文
@@ -221,27 +516,28 @@ public class PackingConvert {
                 return bracketRight;
             }
         }
-        if (StringUtils.endsWithAny(seq.toString(), "%")) {
+        if (StringSeqUtils.endWithAny(seq, '%')) {
             // 多余的百分比和符号，移除掉，目前无含义不用管
             // 例：250ml*20%/盒
             seq.deleteCharAt(seq.length() - 1);
-            StringSeqUtils.pattern(seq, NUMBER_REG_END, true);
+            StringSeqUtils.tailNumber(seq, true);
             deleteTailWithMultiplyOpt(seq);
             deleteTailWithParOpt(seq);
         }
 
         // 部分联装规格拆解后无单位尾缀，用下级的单位，如：100片/瓶*5，`100片/瓶`用`100片`的单位`瓶`
-        String unit = StringUtils.defaultString(StringSeqUtils.pattern(seq, UNIT_REG_END, true), DEF_UNIT);
+        String unit = StringUtils.defaultString(StringSeqUtils.tail(seq, UNITS, true), DEF_UNIT);
         Fraction weight;
         if (seq.length() != 0 && !StringSeqUtils.endWithAny(seq, multiplyOpt)) {
             // 下一组的权重等于当前组的单位系数
             // '/'结尾串和空串（纯单位）按默认权重1，否则从串里取
             // 取出权重数值
-            String numberStr = StringSeqUtils.pattern(seq, NUMBER_REG_END, true);
+            String numberStr = StringSeqUtils.tailNumber(seq, true);
             if (StringUtils.isNotBlank(numberStr)) {
                 weight = new Fraction(new BigDecimal(numberStr));
             } else {
                 log.warn("非法规格串：{}", node.getVal());
+                illegal(node.getVal());
                 // TODO CIdea: 移除末尾的中文串再试一次
                 // 例：0.1%（5g:5mg）
                 return bracketRight;
@@ -268,11 +564,12 @@ public class PackingConvert {
                 par = buildNode(StringSeqUtils.bracket(seq), pkg);
             } else if (bracketRight != null) {
                 // 有右括号了，没有操作符
-            } else if (StringSeqUtils.pattern(seq, UNIT_REG_END, false) != null) {
+            } else if (StringSeqUtils.tail(seq, UNITS, false) != null) {
                 // 有些不搞分隔
                 // 例：2mg14片
             } else {
                 log.warn("非法规格串，无法识别的操作符：{}", seq);
+                illegal(seq.toString());
             }
         }
         Node next = buildNode(seq, unit);
@@ -294,6 +591,7 @@ public class PackingConvert {
                 Edge sync2 = par.getEdges().get(dup);
                 if (!sync1.getWeight().equals(sync2.getWeight())) {
                     log.warn("并行单位重复。l = {}, r = {}", next.getVal(), par.getVal());
+                    illegal(next.getVal() + "|" + par.getVal());
                     error = true;
                     break;
                 }
@@ -363,6 +661,7 @@ public class PackingConvert {
                     Fraction aw = le.getWeight().divide(re.getWeight()).divide(suffix.getWeight());
                     if (re.getAccess().getEdges().containsKey(absentPkg) && !aw.equals(re.getAccess().getEdges().get(absentPkg).getWeight())) {
                         log.warn("并行单位重复。pkg = {}", absentPkg);
+                        illegal(node.getVal());
                     }
                     re.getAccess().link(aw, le.getAccess());
                 }
@@ -617,6 +916,156 @@ public class PackingConvert {
     }
 
 
+    /**
+     * 转换图缓存key
+     */
+    @Data
+    public static class SpecKey implements Serializable {
+
+        /**
+         * 规格值
+         */
+        private final String spec;
+        /**
+         * 规格包装单位
+         */
+        private final String unit;
+
+    }
+
+    /**
+     * 转换过程，对应{@link #convert(BigDecimal, String, String, String, String, ConvertTrace)}的一次转换
+     * 入参为转小写、补默认单位后的值
+     */
+    @Data
+    @Accessors(chain = true)
+    public static class ConvertTrace implements Serializable {
+
+        private BigDecimal cnt;
+        private String cntUnit;
+        private String targetUnit;
+        private String spec;
+        private String unit;
+        /**
+         * 规格解析出的单位
+         */
+        private List<String> units;
+        /**
+         * 当前单位在规格中命中的单位，同义词或通用单位转化后的单位
+         */
+        private String cntMatch;
+        /**
+         * 当前单位是否经通用单位转化，如：kg -> g
+         */
+        private boolean cntGeneral;
+        /**
+         * 当前单位到命中单位的系数
+         */
+        private Fraction curWeight;
+        /**
+         * 目标单位在规格中命中的单位或同义词
+         */
+        private String targetMatch;
+        /**
+         * 目标单位是否经通用单位转化
+         */
+        private boolean targetGeneral;
+        /**
+         * 命中单位到目标单位的系数
+         */
+        private Fraction targetWeight;
+        /**
+         * 最终系数，数量*系数=目标数量
+         */
+        private Fraction weight;
+        /**
+         * 目标数量
+         */
+        private BigDecimal result;
+        /**
+         * 无法转换的原因
+         */
+        private String error;
+
+    }
+
+    /**
+     * 批量解析报告，对应{@link #parseAll(Collection, ForkJoinPool)}的一个规格串
+     */
+    @Data
+    public static class ParseReport implements Serializable {
+
+        /**
+         * 规格值+单位，已转小写、补默认单位
+         */
+        private final SpecKey key;
+        /**
+         * 解析出的单位，非法规格串为空
+         */
+        private List<String> units = Collections.emptyList();
+        /**
+         * 非法片段，解析时跳过的部分
+         */
+        private List<String> illegal = Collections.emptyList();
+        /**
+         * 解析异常
+         */
+        private String error;
+        /**
+         * 解析耗时，纳秒
+         */
+        private long nanos;
+
+        /**
+         * 完整解析，有单位且没有非法片段、异常
+         */
+        public boolean isLegal() {
+            return error == null && illegal.isEmpty() && !units.isEmpty();
+        }
+
+    }
+
+    /**
+     * 批量转换参数，对应{@link #convert(BigDecimal, String, String, String, String)}的入参
+     */
+    @Data
+    @Accessors(chain = true)
+    public static class ConvertParam implements Serializable {
+
+        /**
+         * 当前数量
+         */
+        private BigDecimal cnt;
+        /**
+         * 当前单位
+         */
+        private String cntUnit;
+        /**
+         * 目标单位
+         */
+        private String targetUnit;
+        /**
+         * 规格
+         */
+        private String spec;
+        /**
+         * 单位，对应规格
+         */
+        private String unit;
+
+        public ConvertParam() {
+        }
+
+        public ConvertParam(BigDecimal cnt, String cntUnit, String targetUnit, String spec, String unit) {
+            this.cnt = cnt;
+            this.cntUnit = cntUnit;
+            this.targetUnit = targetUnit;
+            this.spec = spec;
+            this.unit = unit;
+        }
+
+    }
+
     /**
      * 有向图节点
      */
@@ -654,6 +1103,11 @@ public class PackingConvert {
         @Getter
         private final Map<String, Edge> edges = new HashMap<>();
 
+        /**
+         * 编译后的转换表，首次转换时生成，随缓存的节点保存
+         */
+        private transient volatile Compiled compiled;
+
         public Node(String val, String pkg) {
             Assert.hasText(pkg, "pkg is not be null");
             this.val = val;
@@ -678,6 +1132,19 @@ public class PackingConvert {
             return edge;
         }
 
+        /**
+         * 获取编译后的转换表，不存在或表中单位的同义词变动过则重新编译
+         */
+        public Compiled compiled() {
+            Map<String, List<String>> synonyms = Synonyms.ref;
+            Compiled compiled = this.compiled;
+            if (compiled == null || !compiled.validFor(synonyms)) {
+                compiled = compile(this, synonyms);
+                this.compiled = compiled;
+            }
+            return compiled;
+        }
+
         public void link(Fraction fraction, Node node) {
             link(new Edge(fraction, node));
         }
@@ -698,8 +1165,11 @@ public class PackingConvert {
 
     /**
      * 有向图的边
+     * 按引用比较，不同的边即使系数、指向的节点相同也是不同的边（{@link Node#getSuffixes()}中不能合并）
      */
-    @Data
+    @Getter
+    @Setter
+    @ToString
     @Accessors(chain = true)
     public static class Edge implements Serializable {
 
@@ -714,6 +1184,80 @@ public class PackingConvert {
 
     }
 
+    /**
+     * 编译后的转换表
+     * 单位下标+稠密的系数矩阵，转换时只需要两次下标查找和一次乘法
+     */
+    public static class Compiled {
+
+        /**
+         * 编译时的同义词快照
+         */
+        private volatile Map<String, List<String>> synonyms;
+        /**
+         * K-单位；V-下标
+         */
+        private final Map<String, Integer> index;
+        /**
+         * [当前单位][目标单位]的转换系数，null-无法转换；当前单位无法识别时整行为null
+         */
+        private final Fraction[][] weights;
+
+        private Compiled(Map<String, List<String>> synonyms, Map<String, Integer> index, Fraction[][] weights) {
+            this.synonyms = synonyms;
+            this.index = index;
+            this.weights = weights;
+        }
+
+        /**
+         * 同义词快照变动后，表中单位的同义词组都没变则仍然有效
+         * 同义词快照中未变动的组是同一个实例，直接比较引用
+         */
+        private boolean validFor(Map<String, List<String>> synonyms) {
+            Map<String, List<String>> compiled = this.synonyms;
+            if (compiled == synonyms) {
+                return true;
+            }
+            for (String unit : index.keySet()) {
+                if (compiled.get(unit) != synonyms.get(unit)) {
+                    return false;
+                }
+            }
+            this.synonyms = synonyms;
+            return true;
+        }
+
+        /**
+         * 是否能识别当前单位
+         */
+        public boolean contains(String cntUnit) {
+            Integer i = index.get(cntUnit);
+            return i != null && weights[i] != null;
+        }
+
+        /**
+         * 当前单位转为目标单位的系数
+         *
+         * @return 无法转换时返回null
+         */
+        public Fraction weight(String cntUnit, String targetUnit) {
+            Integer i = index.get(cntUnit);
+            Integer j = index.get(targetUnit);
+            if (i == null || j == null || weights[i] == null) {
+                return null;
+            }
+            return weights[i][j];
+        }
+
+        /**
+         * 表中所有单位
+         */
+        public Set<String> units() {
+            return Collections.unmodifiableSet(index.keySet());
+        }
+
+    }
+
     /**
      * 近义词组
      *
@@ -721,68 +1265,96 @@ public class PackingConvert {
      */
     public static class Synonyms {
 
-        private static Map<String, Set<String>> ref = new HashMap<>();
+        /**
+         * 只读快照，K-词；V-近义词组，词本身排第一
+         * 变动时复制一份整体替换，未变动的词组沿用原实例，读取时不加锁也不创建对象
+         */
+        private static volatile Map<String, List<String>> ref;
 
         static {
             // 默认的同义词组，不分先后
-            List<Set<String>> data = new ArrayList<>();
-            data.add(new HashSet<>(Arrays.asList(new String[]{"粒", "片", "丸", "枚", "#"})));
-            data.add(new HashSet<>(Arrays.asList(new String[]{"袋", "包"})));
-            data.add(new HashSet<>(Arrays.asList(new String[]{"mg", "毫克"})));
-            data.add(new HashSet<>(Arrays.asList(new String[]{"g", "克"})));
-            data.add(new HashSet<>(Arrays.asList(new String[]{"kg", "千克"})));
-            data.add(new HashSet<>(Arrays.asList(new String[]{"t", "吨"})));
-            data.add(new HashSet<>(Arrays.asList(new String[]{"l", "升"})));
-            data.add(new HashSet<>(Arrays.asList(new String[]{"ml", "毫升"})));
-
-            for (Set<String> terms : data) {
-                for (String term : terms) {
-                    ref.put(term, terms);
-                }
+            List<List<String>> data = new ArrayList<>();
+            data.add(Arrays.asList("粒", "片", "丸", "枚", "#"));
+            data.add(Arrays.asList("袋", "包"));
+            data.add(Arrays.asList("mg", "毫克"));
+            data.add(Arrays.asList("g", "克"));
+            data.add(Arrays.asList("kg", "千克"));
+            data.add(Arrays.asList("t", "吨"));
+            data.add(Arrays.asList("l", "升"));
+            data.add(Arrays.asList("ml", "毫升"));
+
+            Map<String, List<String>> init = new HashMap<>();
+            for (List<String> terms : data) {
+                put(init, terms);
             }
+            ref = Collections.unmodifiableMap(init);
         }
 
         /**
          * 获取近义词组
          *
          * @param term
-         * @return
+         * @return 不可修改，term排第一
          */
         public static List<String> get(String term) {
-            Set<String> set = ref.get(term);
-            if (set == null) {
+            return get(ref, term);
+        }
+
+        private static List<String> get(Map<String, List<String>> ref, String term) {
+            List<String> terms = ref.get(term);
+            if (terms == null) {
                 return Collections.singletonList(term);
             }
-            set = new HashSet<>(set);
-            // term放第一个
-            return set.stream().sorted((o1, o2) -> o1.equals(term) ? -1 : 1).collect(Collectors.toList());
+            return terms;
         }
 
         /**
-         * 添加近义词
+         * 添加近义词，两个词所在的词组合并
+         * 只有合并后词组里的单位相关的转换表会失效，见{@link Compiled#validFor(Map)}
          *
          * @param term1
          * @param term2
          */
-        public static void add(String term1, String term2) {
+        public static synchronized void add(String term1, String term2) {
             if (StringUtils.isAnyBlank(term1, term2)) {
                 return;
             }
-            Set<String> s1 = ref.computeIfAbsent(term1, k -> new HashSet<>());
-            Set<String> s2 = ref.computeIfAbsent(term2, k -> new HashSet<>());
-            s1.add(term1);
-            s1.add(term2);
-            s1.addAll(s2);
-            ref.put(term1, s1);
-            ref.put(term2, s1);
+            Map<String, List<String>> cur = ref;
+            List<String> terms1 = get(cur, term1);
+            List<String> terms2 = get(cur, term2);
+            if (terms1.contains(term2)) {
+                // 已经是近义词
+                return;
+            }
+            Set<String> terms = new LinkedHashSet<>(terms1);
+            terms.addAll(terms2);
+            Map<String, List<String>> next = new HashMap<>(cur);
+            put(next, terms);
+            ref = Collections.unmodifiableMap(next);
         }
 
         /**
          * 清空近义词
          * 允许清除预设完全自定义
          */
-        public static void clear() {
-            ref.clear();
+        public static synchronized void clear() {
+            ref = Collections.emptyMap();
+        }
+
+        /**
+         * 词组里每个词都生成一份自己排第一的有序词组
+         */
+        private static void put(Map<String, List<String>> ref, Collection<String> terms) {
+            for (String term : terms) {
+                List<String> sorted = new ArrayList<>(terms.size());
+                sorted.add(term);
+                for (String other : terms) {
+                    if (!other.equals(term)) {
+                        sorted.add(other);
+                    }
+                }
+                ref.put(term, Collections.unmodifiableList(sorted));
+            }
         }
 
     }
@@ -0,0 +1,219 @@
+package cn.cidea.core.utils;
+
+import cn.cidea.core.utils.math.Fraction;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.util.Assert;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * {@link PackingConvert}转换图快照
+ * 预先批量解析规格串，把转换图扁平化后写入二进制文件，启动时内存映射读取直接放入缓存，避免发版后首次访问时大量重新解析
+ * 快照里的节点只保留边{@link PackingConvert.Node#getEdges()}，转换只需要边，pre、suffixes只在解析时使用
+ * <p>
+ * 文件格式：
+ * <pre>
+ * magic(int) version(int) count(int)
+ * count个转换图：spec(str) unit(str) nodeCount(int)，nodeCount为0表示非法规格串，下标0为根节点
+ *     nodeCount个节点：val(str) pkg(str)
+ *     nodeCount个节点的边：edgeCount(int)，edgeCount条边：key(str) access(int，节点下标) weight
+ * str：字节数(int) + UTF-8字节，-1表示null
+ * weight：0 + 分子(long) + 分母(long)；超出long时 1 + 分子字节数(int) + 分子字节 + 分母字节数(int) + 分母字节
+ * </pre>
+ *
+ * @author: CIdea
+ */
+@Slf4j
+public class PackingConvertSnapshot {
+
+    private static final int MAGIC = 0x50434e56;
+    private static final int VERSION = 1;
+
+    /**
+     * 解析规格串并写入快照文件
+     *
+     * @param catalog 规格串+单位，处理同{@link PackingConvert#convert(java.math.BigDecimal, String, String, String, String)}
+     * @param file    快照文件，已存在则覆盖；先写入同目录的临时文件再原子替换，写入中断不会留下损坏的快照
+     * @return 写入的转换图数量，解析异常的规格串跳过
+     */
+    public static int write(Collection<PackingConvert.SpecKey> catalog, Path file) throws IOException {
+        Set<PackingConvert.SpecKey> keys = new LinkedHashSet<>();
+        for (PackingConvert.SpecKey key : catalog) {
+            keys.add(PackingConvert.key(key.getSpec(), key.getUnit()));
+        }
+        Map<PackingConvert.SpecKey, PackingConvert.Node> trees = new LinkedHashMap<>();
+        for (PackingConvert.SpecKey key : keys) {
+            try {
+                trees.put(key, PackingConvert.buildTree(key.getSpec(), key.getUnit()));
+            } catch (RuntimeException e) {
+                log.warn("build tree error, spec = {}, unit = {}", key.getSpec(), key.getUnit(), e);
+            }
+        }
+        Path dir = file.toAbsolutePath().getParent();
+        Path tmp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(trees.size());
+                for (Map.Entry<PackingConvert.SpecKey, PackingConvert.Node> entry : trees.entrySet()) {
+                    writeStr(out, entry.getKey().getSpec());
+                    writeStr(out, entry.getKey().getUnit());
+                    writeTree(out, entry.getValue());
+                }
+            }
+            Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        log.info("write snapshot, file = {}, size = {}", file, trees.size());
+        return trees.size();
+    }
+
+    /**
+     * 内存映射读取快照文件，转换图放入缓存
+     * 默认缓存容量为10000，快照更大时需要先通过{@link PackingConvert#setCache(com.google.common.cache.Cache)}设置足够的容量，否则读取过程中就会被淘汰
+     *
+     * @param file 快照文件
+     * @return 读取的转换图数量
+     */
+    public static int load(Path file) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        Assert.isTrue(buffer.getInt() == MAGIC, "file " + file + " is not a snapshot");
+        int version = buffer.getInt();
+        Assert.isTrue(version == VERSION, "snapshot version " + version + " is not supported");
+        int count = buffer.getInt();
+        for (int i = 0; i < count; i++) {
+            String spec = readStr(buffer);
+            String unit = readStr(buffer);
+            PackingConvert.cache(new PackingConvert.SpecKey(spec, unit), readTree(buffer));
+        }
+        log.info("load snapshot, file = {}, size = {}", file, count);
+        long cached = PackingConvert.cacheSize();
+        if (cached < count) {
+            log.warn("snapshot is larger than cache, only {} of {} trees are cached, set a larger cache by PackingConvert.setCache(...) before load", cached, count);
+        }
+        return count;
+    }
+
+    private static void writeTree(DataOutputStream out, PackingConvert.Node root) throws IOException {
+        if (root == null) {
+            out.writeInt(0);
+            return;
+        }
+        // 广度优先给节点编号，根节点为0
+        Map<PackingConvert.Node, Integer> index = new IdentityHashMap<>();
+        List<PackingConvert.Node> nodes = new ArrayList<>();
+        index.put(root, 0);
+        nodes.add(root);
+        for (int i = 0; i < nodes.size(); i++) {
+            for (PackingConvert.Edge edge : nodes.get(i).getEdges().values()) {
+                if (!index.containsKey(edge.getAccess())) {
+                    index.put(edge.getAccess(), nodes.size());
+                    nodes.add(edge.getAccess());
+                }
+            }
+        }
+        out.writeInt(nodes.size());
+        for (PackingConvert.Node node : nodes) {
+            writeStr(out, node.getVal());
+            writeStr(out, node.getPkg());
+        }
+        for (PackingConvert.Node node : nodes) {
+            out.writeInt(node.getEdges().size());
+            for (Map.Entry<String, PackingConvert.Edge> entry : node.getEdges().entrySet()) {
+                writeStr(out, entry.getKey());
+                out.writeInt(index.get(entry.getValue().getAccess()));
+                writeWeight(out, entry.getValue().getWeight());
+            }
+        }
+    }
+
+    private static PackingConvert.Node readTree(ByteBuffer buffer) {
+        int size = buffer.getInt();
+        if (size == 0) {
+            return null;
+        }
+        PackingConvert.Node[] nodes = new PackingConvert.Node[size];
+        for (int i = 0; i < size; i++) {
+            String val = readStr(buffer);
+            nodes[i] = new PackingConvert.Node(val, readStr(buffer));
+        }
+        for (PackingConvert.Node node : nodes) {
+            int edgeCount = buffer.getInt();
+            for (int i = 0; i < edgeCount; i++) {
+                String key = readStr(buffer);
+                PackingConvert.Node access = nodes[buffer.getInt()];
+                node.getEdges().put(key, new PackingConvert.Edge(readWeight(buffer), access));
+            }
+        }
+        return nodes[0];
+    }
+
+    private static void writeWeight(DataOutputStream out, Fraction weight) throws IOException {
+        BigInteger up = weight.numerator();
+        BigInteger down = weight.denominator();
+        if (up.bitLength() < Long.SIZE && down.bitLength() < Long.SIZE) {
+            out.writeByte(0);
+            out.writeLong(up.longValue());
+            out.writeLong(down.longValue());
+        } else {
+            out.writeByte(1);
+            writeBytes(out, up.toByteArray());
+            writeBytes(out, down.toByteArray());
+        }
+    }
+
+    private static Fraction readWeight(ByteBuffer buffer) {
+        if (buffer.get() == 0) {
+            long up = buffer.getLong();
+            return new Fraction(up, buffer.getLong());
+        }
+        BigInteger up = new BigInteger(readBytes(buffer));
+        return new Fraction(up, new BigInteger(readBytes(buffer)));
+    }
+
+    private static void writeStr(DataOutputStream out, String str) throws IOException {
+        if (str == null) {
+            out.writeInt(-1);
+            return;
+        }
+        writeBytes(out, str.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String readStr(ByteBuffer buffer) {
+        byte[] bytes = readBytes(buffer);
+        return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(ByteBuffer buffer) {
+        int size = buffer.getInt();
+        if (size < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[size];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+}
@@ -1,9 +1,12 @@
 package cn.cidea.core.utils;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.springframework.util.Assert;
 
+import java.util.Arrays;
 import java.util.Stack;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -18,6 +21,12 @@ public class StringSeqUtils {
 
     private static final char[] prefixes = new char[]{'(', '（', '[', '{', '【'};
     private static final char[] suffixes = new char[prefixes.length];
+    /**
+     * 编译过的正则，K-正则式，正则式由调用方传入，按数量淘汰
+     */
+    private static final Cache<String, Pattern> patterns = CacheBuilder.newBuilder()
+            .maximumSize(256)
+            .build();
 
     static {
         for (int i = 0; i < prefixes.length; i++) {
@@ -162,7 +171,13 @@ public class StringSeqUtils {
      * @return
      */
     public static String pattern(StringBuilder str, String regex, boolean delete) {
-        Matcher matcher = Pattern.compile(regex).matcher(str.toString());
+        Pattern pattern = patterns.getIfPresent(regex);
+        if (pattern == null) {
+            // 并发时可能重复编译，结果相同
+            pattern = Pattern.compile(regex);
+            patterns.put(regex, pattern);
+        }
+        Matcher matcher = pattern.matcher(str);
         if (!matcher.find()) {
             return null;
         }
@@ -173,4 +188,142 @@ public class StringSeqUtils {
         return get;
     }
 
+    /**
+     * 末尾的数字，含小数，不含科学计数，同正则{@link RegexStr#NUMBER}+"$"，取最长的匹配
+     * 例：10.5 -> 10.5；0.3 -> 0.3；007 -> 7；5. -> 5.；x.5 -> 5
+     *
+     * @param str
+     * @param delete 是否删除
+     * @return 没有则返回null
+     */
+    public static String tailNumber(StringBuilder str, boolean delete) {
+        int end = str.length();
+        // 末尾的连续数字
+        int digit = end;
+        while (digit > 0 && isDigit(str.charAt(digit - 1))) {
+            digit--;
+        }
+        int start = -1;
+        if (digit > 0 && str.charAt(digit - 1) == '.') {
+            // 小数，小数点前需要有整数部分
+            int dot = digit - 1;
+            int integer = dot;
+            while (integer > 0 && isDigit(str.charAt(integer - 1))) {
+                integer--;
+            }
+            if (integer < dot) {
+                start = integerStart(str, integer, dot);
+            }
+        }
+        if (start < 0 && digit < end) {
+            start = integerStart(str, digit, end);
+        }
+        if (start < 0) {
+            return null;
+        }
+        String get = str.substring(start);
+        if (delete) {
+            str.setLength(start);
+        }
+        return get;
+    }
+
+    /**
+     * 整数部分的起始下标，不能以0开头，除了0本身
+     */
+    private static int integerStart(StringBuilder str, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (str.charAt(i) != '0') {
+                return i;
+            }
+        }
+        return to - 1;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    /**
+     * 末尾的词，取词表中最长的匹配，同正则"(词1|词2|...)$"
+     *
+     * @param str
+     * @param words  词表
+     * @param delete 是否删除
+     * @return 没有则返回null
+     */
+    public static String tail(StringBuilder str, Suffixes words, boolean delete) {
+        int start = words.match(str);
+        if (start < 0) {
+            return null;
+        }
+        String get = str.substring(start);
+        if (delete) {
+            str.setLength(start);
+        }
+        return get;
+    }
+
+    /**
+     * 后缀词表，倒序的字典树，从字符串末尾往前匹配，匹配过程不产生对象
+     */
+    public static class Suffixes {
+
+        private final Suffixes[] children;
+        private final char[] chars;
+        private final boolean word;
+
+        public Suffixes(String... words) {
+            this(words, 0);
+        }
+
+        private Suffixes(String[] words, int depth) {
+            // 当前层的词都以相同的depth个字符结尾，按倒数第depth+1个字符分组
+            boolean word = false;
+            StringBuilder chars = new StringBuilder();
+            for (String w : words) {
+                if (w.length() == depth) {
+                    word = true;
+                } else if (chars.indexOf(String.valueOf(charAt(w, depth))) < 0) {
+                    chars.append(charAt(w, depth));
+                }
+            }
+            this.word = word;
+            this.chars = chars.toString().toCharArray();
+            Arrays.sort(this.chars);
+            this.children = new Suffixes[this.chars.length];
+            for (int i = 0; i < this.chars.length; i++) {
+                char c = this.chars[i];
+                String[] sub = Arrays.stream(words)
+                        .filter(w -> w.length() > depth && charAt(w, depth) == c)
+                        .toArray(String[]::new);
+                children[i] = new Suffixes(sub, depth + 1);
+            }
+        }
+
+        private static char charAt(String w, int depth) {
+            return w.charAt(w.length() - 1 - depth);
+        }
+
+        /**
+         * @return 最长匹配的起始下标，没有则返回-1
+         */
+        private int match(CharSequence str) {
+            int start = -1;
+            Suffixes node = this;
+            for (int i = str.length() - 1; i >= 0; i--) {
+                int idx = Arrays.binarySearch(node.chars, str.charAt(i));
+                if (idx < 0) {
+                    break;
+                }
+                node = node.children[idx];
+                if (node.word) {
+                    start = i;
+                }
+            }
+            return start;
+        }
+
+    }
+
 }
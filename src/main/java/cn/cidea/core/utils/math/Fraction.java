@@ -2,60 +2,221 @@ package cn.cidea.core.utils.math;
 
 import java.io.Serializable;
 import java.math.BigDecimal;
+import java.math.BigInteger;
 import java.math.RoundingMode;
 
 /**
  * 分数，使用方式参照{@link BigDecimal}
  * 为了保证{@link BigDecimal}在连续乘除中，精度不丢失或尽量少丢
  * 例：1 / 3 * 3 -> (1 * 3) / 3
+ * 内部保存约分后的分子、分母，分母非负，都在long范围内时用long运算，溢出时才改用{@link BigInteger}
  * @author: CIdea
  */
 public class Fraction implements Serializable {
 
-    private final BigDecimal up;
-    private final BigDecimal down;
+    /**
+     * 2-改为保存约分后的long分子分母，与之前的序列化数据不兼容
+     */
+    private static final long serialVersionUID = 2L;
+    private static final BigInteger LONG_MIN = BigInteger.valueOf(Long.MIN_VALUE);
 
-    public final static Fraction ONE = new Fraction(BigDecimal.ONE);
+    /**
+     * 分子、分母，{@link #bigUp}不为null时无意义
+     */
+    private final long up;
+    private final long down;
+    /**
+     * 超出long范围的分子、分母
+     */
+    private final BigInteger bigUp;
+    private final BigInteger bigDown;
+
+    public final static Fraction ONE = new Fraction(1, 1, null, null);
 
     public Fraction(BigDecimal up) {
         this(up, BigDecimal.ONE);
     }
 
     public Fraction(BigDecimal up, BigDecimal down) {
+        this(of(up, down));
+    }
+
+    public Fraction(long up, long down) {
+        this(of(up, down));
+    }
+
+    public Fraction(BigInteger up, BigInteger down) {
+        this(of(up, down));
+    }
+
+    private Fraction(Fraction reduced) {
+        this(reduced.up, reduced.down, reduced.bigUp, reduced.bigDown);
+    }
+
+    private Fraction(long up, long down, BigInteger bigUp, BigInteger bigDown) {
         this.up = up;
         this.down = down;
+        this.bigUp = bigUp;
+        this.bigDown = bigDown;
+    }
+
+    /**
+     * (a / 10^s1) / (b / 10^s2) = (a * 10^s2) / (b * 10^s1)
+     */
+    private static Fraction of(BigDecimal up, BigDecimal down) {
+        BigInteger u = up.unscaledValue();
+        BigInteger d = down.unscaledValue();
+        int scale = up.scale() - down.scale();
+        if (scale > 0) {
+            d = d.multiply(BigInteger.TEN.pow(scale));
+        } else if (scale < 0) {
+            u = u.multiply(BigInteger.TEN.pow(-scale));
+        }
+        return of(u, d);
+    }
+
+    private static Fraction of(long up, long down) {
+        if (up == Long.MIN_VALUE || down == Long.MIN_VALUE) {
+            // 取反会溢出
+            return of(BigInteger.valueOf(up), BigInteger.valueOf(down));
+        }
+        if (down < 0) {
+            up = -up;
+            down = -down;
+        }
+        long gcd = gcd(Math.abs(up), down);
+        if (gcd > 1) {
+            up /= gcd;
+            down /= gcd;
+        }
+        if (up == 1 && down == 1) {
+            return ONE;
+        }
+        return new Fraction(up, down, null, null);
+    }
+
+    private static Fraction of(BigInteger up, BigInteger down) {
+        if (down.signum() < 0) {
+            up = up.negate();
+            down = down.negate();
+        }
+        BigInteger gcd = up.gcd(down);
+        if (gcd.compareTo(BigInteger.ONE) > 0) {
+            up = up.divide(gcd);
+            down = down.divide(gcd);
+        }
+        if (up.bitLength() < Long.SIZE && down.bitLength() < Long.SIZE && !LONG_MIN.equals(up)) {
+            // 约分后回到long范围
+            return of(up.longValue(), down.longValue());
+        }
+        return new Fraction(0, 0, up, down);
+    }
+
+    private static long gcd(long a, long b) {
+        while (b != 0) {
+            long t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+
+    private boolean isBig() {
+        return bigUp != null;
+    }
+
+    private BigInteger bigUp() {
+        return isBig() ? bigUp : BigInteger.valueOf(up);
+    }
+
+    private BigInteger bigDown() {
+        return isBig() ? bigDown : BigInteger.valueOf(down);
+    }
+
+    /**
+     * 约分后的分子
+     */
+    public BigInteger numerator() {
+        return bigUp();
+    }
+
+    /**
+     * 约分后的分母，非负
+     */
+    public BigInteger denominator() {
+        return bigDown();
     }
 
     public Fraction multiply(Fraction weight) {
-        return new Fraction(weight.up.multiply(up), weight.down.multiply(down));
+        if (!isBig() && !weight.isBig()) {
+            // 先交叉约分，减小中间结果
+            long g1 = Math.max(gcd(Math.abs(up), weight.down), 1);
+            long g2 = Math.max(gcd(Math.abs(weight.up), down), 1);
+            try {
+                return of(Math.multiplyExact(up / g1, weight.up / g2), Math.multiplyExact(down / g2, weight.down / g1));
+            } catch (ArithmeticException e) {
+                // 溢出，改用BigInteger
+            }
+        }
+        return of(bigUp().multiply(weight.bigUp()), bigDown().multiply(weight.bigDown()));
     }
 
     public Fraction divide(Fraction weight) {
-        return new Fraction(up.multiply(weight.down), down.multiply(weight.up));
+        return multiply(weight.reverse());
     }
 
     public Fraction reverse(){
-        return new Fraction(down, up);
+        if (isBig()) {
+            return of(bigDown, bigUp);
+        }
+        return of(down, up);
     }
 
     public BigDecimal val() {
-        return up.divide(down);
+        if (isBig()) {
+            return new BigDecimal(bigUp).divide(new BigDecimal(bigDown));
+        }
+        return BigDecimal.valueOf(up).divide(BigDecimal.valueOf(down));
     }
 
+    /**
+     * 整数、小数位数不超过精度的有限小数（约分后分母为10的幂且不大于10^scale）直接返回精确值，否则按精度取舍
+     * 约分后无法区分是否由小数直接构造，小数位数超过精度的按精度取舍，与连续乘除的结果一致
+     */
     public BigDecimal val(int scale, RoundingMode roundingMode) {
-        if(BigDecimal.ONE.equals(down)){
-            return up;
+        if (isBig()) {
+            BigDecimal decimalDown = new BigDecimal(bigDown).stripTrailingZeros();
+            if (BigInteger.ONE.equals(decimalDown.unscaledValue()) && -decimalDown.scale() <= scale) {
+                return new BigDecimal(bigUp, -decimalDown.scale());
+            }
+            return new BigDecimal(bigUp).divide(new BigDecimal(bigDown), scale, roundingMode);
         }
-        if(up.equals(down)){
-            return BigDecimal.ONE;
+        int exponent = tenExponent(down);
+        if (exponent >= 0 && exponent <= scale) {
+            return BigDecimal.valueOf(up, exponent);
         }
-        return up.divide(down, scale, roundingMode);
+        return BigDecimal.valueOf(up).divide(BigDecimal.valueOf(down), scale, roundingMode);
+    }
+
+    /**
+     * @return n满足value = 10^n，不是10的幂时为-1
+     */
+    private static int tenExponent(long value) {
+        int exponent = 0;
+        while (value != 0 && value % 10 == 0) {
+            value /= 10;
+            exponent++;
+        }
+        return value == 1 ? exponent : -1;
     }
 
     @Override
     public String toString() {
-        if(BigDecimal.ONE.equals(down)){
-            return up.toString();
+        if (isBig()) {
+            return BigInteger.ONE.equals(bigDown) ? bigUp.toString() : bigUp + "/" + bigDown;
+        }
+        if (down == 1) {
+            return String.valueOf(up);
         }
         return up + "/" + down;
     }
@@ -67,23 +228,58 @@ public class Fraction implements Serializable {
         }
         return equals((Fraction) obj);
     }
+
+    /**
+     * 都是约分后的形式，直接比较分子分母
+     */
     public boolean equals(Fraction other) {
-        return up.multiply(other.down).compareTo(down.multiply(other.up)) == 0;
+        if (isBig() || other.isBig()) {
+            return bigUp().equals(other.bigUp()) && bigDown().equals(other.bigDown());
+        }
+        return up == other.up && down == other.down;
+    }
+
+    @Override
+    public int hashCode() {
+        if (isBig()) {
+            return 31 * bigUp.hashCode() + bigDown.hashCode();
+        }
+        return 31 * Long.hashCode(up) + Long.hashCode(down);
     }
 
     public boolean gtOne(){
-        return up.compareTo(down) > 0;
+        if (isBig()) {
+            return bigUp.compareTo(bigDown) > 0;
+        }
+        return up > down;
     }
 
     public boolean eqOne(){
-        return up.compareTo(down) == 0;
+        if (isBig()) {
+            return bigUp.equals(bigDown);
+        }
+        return up == down;
     }
 
     public boolean gt(Fraction other) {
-        return up.multiply(other.down).compareTo(down.multiply(other.up)) > 0;
+        return compare(other) > 0;
     }
 
     public boolean lt(Fraction other) {
-        return up.multiply(other.down).compareTo(down.multiply(other.up)) < 0;
+        return compare(other) < 0;
+    }
+
+    /**
+     * 交叉相乘比较，分母非负
+     */
+    private int compare(Fraction other) {
+        if (!isBig() && !other.isBig()) {
+            try {
+                return Long.compare(Math.multiplyExact(up, other.down), Math.multiplyExact(down, other.up));
+            } catch (ArithmeticException e) {
+                // 溢出，改用BigInteger
+            }
+        }
+        return bigUp().multiply(other.bigDown()).compareTo(bigDown().multiply(other.bigUp()));
     }
 }
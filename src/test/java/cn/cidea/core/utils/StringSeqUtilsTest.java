@@ -0,0 +1,48 @@
+package cn.cidea.core.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * 校验{@link StringSeqUtils#tailNumber(StringBuilder, boolean)}、{@link StringSeqUtils#tail(StringBuilder, StringSeqUtils.Suffixes, boolean)}与对应正则的结果一致
+ * 随机串由数字、小数点、词表中的字符组成，覆盖前导0、多个小数点、词的部分后缀等情况
+ *
+ * @author: CIdea
+ */
+public class StringSeqUtilsTest {
+
+    private static final int TIMES = 2000000;
+
+    @Test
+    public void tailMatchesRegex() {
+        String[] words = {"m", "mg", "g", "kg", "ml", "l", "ul", "iu", "u", "万iu", "万u", "a.b", "片", "复方片", "复方", "片瓶", "单位", "pna单位"};
+        StringSeqUtils.Suffixes suffixes = new StringSeqUtils.Suffixes(words);
+        String wordReg = "(" + Arrays.stream(words).map(Pattern::quote).reduce((a, b) -> a + "|" + b).orElse("") + ")$";
+        String numberReg = RegexStr.NUMBER + "$";
+        String alphabet = "0123456789..mgkluiab万片复方瓶单位pnx*";
+        Random random = new Random(0);
+        for (int i = 0; i < TIMES; i++) {
+            StringBuilder sb = new StringBuilder();
+            int len = random.nextInt(8);
+            for (int j = 0; j < len; j++) {
+                sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+            String str = sb.toString();
+            assertEquals(StringSeqUtils.pattern(new StringBuilder(str), numberReg, false),
+                    StringSeqUtils.tailNumber(new StringBuilder(str), false), "tailNumber: " + str);
+            assertEquals(StringSeqUtils.pattern(new StringBuilder(str), wordReg, false),
+                    StringSeqUtils.tail(new StringBuilder(str), suffixes, false), "tail: " + str);
+            StringBuilder deleted = new StringBuilder(str);
+            StringSeqUtils.tailNumber(deleted, true);
+            StringBuilder expected = new StringBuilder(str);
+            StringSeqUtils.pattern(expected, numberReg, true);
+            assertEquals(expected.toString(), deleted.toString(), "tailNumber delete: " + str);
+        }
+    }
+
+}
@@ -0,0 +1,78 @@
+package cn.cidea.core.utils.math;
+
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.util.Random;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * @author: CIdea
+ */
+public class FractionTest {
+
+    private static final int TIMES = 200000;
+
+    /**
+     * 校验long运算与{@link BigInteger}运算的结果一致：随机的分子分母连续乘除，与直接用{@link BigInteger}计算再约分的结果比较
+     * 分子分母取接近long边界的值，覆盖溢出改用{@link BigInteger}、约分后回到long的情况
+     */
+    @Test
+    public void longMatchesBigInteger() {
+        Random random = new Random(0);
+        long[] edges = {0, 1, -1, 2, 3, 10, 1000, Integer.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE / 3, Long.MIN_VALUE, Long.MIN_VALUE + 1};
+        for (int i = 0; i < TIMES; i++) {
+            Fraction f = Fraction.ONE;
+            BigInteger up = BigInteger.ONE;
+            BigInteger down = BigInteger.ONE;
+            int steps = 1 + random.nextInt(6);
+            for (int j = 0; j < steps; j++) {
+                long u = random.nextBoolean() ? edges[random.nextInt(edges.length)] : random.nextLong() >> random.nextInt(64);
+                long d = random.nextBoolean() ? edges[random.nextInt(edges.length)] : random.nextLong() >> random.nextInt(64);
+                if (u == 0 || d == 0) {
+                    continue;
+                }
+                Supplier<String> step = () -> "up = " + u + ", down = " + d;
+                Fraction w = new Fraction(u, d);
+                assertEquals(new Fraction(BigInteger.valueOf(u), BigInteger.valueOf(d)), w, () -> "construct, " + step.get());
+                if (random.nextBoolean()) {
+                    f = f.multiply(w);
+                    up = up.multiply(BigInteger.valueOf(u));
+                    down = down.multiply(BigInteger.valueOf(d));
+                } else {
+                    f = f.divide(w);
+                    up = up.multiply(BigInteger.valueOf(d));
+                    down = down.multiply(BigInteger.valueOf(u));
+                }
+                Fraction expected = new Fraction(up, down);
+                BigInteger gcd = up.gcd(down).multiply(BigInteger.valueOf(down.signum()));
+                assertEquals(up.divide(gcd), f.numerator(), () -> "reduce numerator, " + step.get());
+                assertEquals(down.divide(gcd), f.denominator(), () -> "reduce denominator, " + step.get());
+                assertEquals(expected, f, () -> "equals, " + step.get());
+                assertEquals(expected.hashCode(), f.hashCode(), () -> "hashCode, " + step.get());
+                int compare = new BigDecimal(up).multiply(new BigDecimal(w.denominator()))
+                        .compareTo(new BigDecimal(down).multiply(new BigDecimal(w.numerator()))) * down.signum();
+                assertEquals(compare > 0, f.gt(w), () -> "gt, " + step.get());
+                assertEquals(compare < 0, f.lt(w), () -> "lt, " + step.get());
+            }
+        }
+    }
+
+    /**
+     * 小数位数不超过精度的有限小数返回精确值，其余按精度取舍
+     */
+    @Test
+    public void val() {
+        assertEquals(new BigDecimal("7"), new Fraction(7, 1).val(8, RoundingMode.CEILING));
+        assertEquals(new BigDecimal("0.003"), new Fraction(new BigDecimal("0.003")).val(8, RoundingMode.CEILING));
+        assertEquals(new BigDecimal("0.12345679"), new Fraction(new BigDecimal("0.123456789")).val(8, RoundingMode.CEILING));
+        assertEquals(new BigDecimal("0.33333334"), new Fraction(1, 3).val(8, RoundingMode.CEILING));
+        assertTrue(new BigDecimal("0.5").compareTo(new Fraction(new BigDecimal("0.25"), new BigDecimal("0.5")).val(8, RoundingMode.CEILING)) == 0);
+    }
+
+}